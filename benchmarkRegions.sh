@@ -0,0 +1,17 @@
+#!/bin/sh
+# Runs the headless benchmark with all ships on one fiber scheduler, and then with a scheduler per region, and
+# reports tick throughput and (where perf is available) last-level cache loads and misses for each run.
+# Usage: ./benchmarkRegions.sh [regions (default 2x2)] [N (default 100000)]
+regions=${1:-2x2}
+n=${2:-100000}
+if command -v perf > /dev/null 2>&1; then
+	perf="perf stat -e LLC-loads,LLC-load-misses --"
+else
+	echo "perf not found: reporting tick throughput only"
+	perf=""
+fi
+for r in 0 $regions; do
+	echo "=== scheduler-regions = $r"
+	$perf ./runMain.sh co.paralleluniverse.spaceships.Spaceships ui-component=NONE N=$n scheduler-regions=$r benchmark-report=regions-$r.json
+	grep -o '"ticksPerSecond": *[0-9.E]*' regions-$r.json
+done
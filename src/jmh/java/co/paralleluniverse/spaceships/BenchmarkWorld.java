@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import java.io.InputStreamReader;
+import java.util.Properties;
+
+/**
+ * Creates a world for the benchmarks to work with. The world is never run.
+ */
+final class BenchmarkWorld {
+    static Spaceships create() throws Exception {
+        Properties props = new Properties();
+        props.load(new InputStreamReader(ClassLoader.getSystemResourceAsStream("spaceships.properties")));
+        props.setProperty("ui-component", "NONE");
+        props.remove("dir");
+        return new Spaceships(-1, props);
+    }
+
+    private BenchmarkWorld() {
+    }
+}
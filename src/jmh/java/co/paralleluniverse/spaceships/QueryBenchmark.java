@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.db.tree.QueryResult;
+import co.paralleluniverse.spacebase.AABB;
+import co.paralleluniverse.spacebase.MutableAABB;
+import static java.lang.Math.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks of the custom spatial queries' per-element and per-container tests.
+ * The {@code legacy} benchmarks measure the radar query as it was before it was made trigonometry-free.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class QueryBenchmark {
+    private static final int POINTS = 1024; // power of 2
+    private AABB[] points;
+    private AABB[] boxes;
+    private final RayCastQuery rayCastQuery = new RayCastQuery();
+    private final RadarQuery radarQuery = new RadarQuery(toRadians(30), 400);
+    private final LegacyRadarQuery legacyRadarQuery = new LegacyRadarQuery();
+    private int i;
+
+    @Setup
+    public void setup() {
+        final RandSpatial random = new RandSpatial();
+        final AABB bounds = AABB.create(-500.0, 500.0, -500.0, 500.0);
+        this.points = new AABB[POINTS];
+        this.boxes = new AABB[POINTS];
+        for (int k = 0; k < POINTS; k++) {
+            points[k] = random.randomPoint(bounds);
+            final double x = random.randRange(-500, 500);
+            final double y = random.randRange(-500, 500);
+            boxes[k] = AABB.create(x, x + random.randRange(0, 100), y, y + random.randRange(0, 100));
+        }
+        rayCastQuery.reset(0, 0, cos(0.3), sin(0.3), 200, 10);
+    }
+
+    private AABB nextPoint() {
+        return points[(i++) & (POINTS - 1)];
+    }
+
+    private AABB nextBox() {
+        return boxes[(i++) & (POINTS - 1)];
+    }
+
+    @Benchmark
+    public boolean radarQuery() {
+        return radarQuery.reset(0, 0, 30, 40).queryElement(nextPoint(), null);
+    }
+
+    @Benchmark
+    public boolean legacyRadarQuery() {
+        return legacyRadarQuery.reset(0, 0, 30, 40, toRadians(30), 400).queryElement(nextPoint(), null);
+    }
+
+    @Benchmark
+    public QueryResult radarQueryContainer() {
+        return radarQuery.reset(0, 0, 30, 40).queryContainer(nextBox());
+    }
+
+    @Benchmark
+    public QueryResult legacyRadarQueryContainer() {
+        return legacyRadarQuery.reset(0, 0, 30, 40, toRadians(30), 400).queryContainer(nextBox());
+    }
+
+    @Benchmark
+    public boolean rayCastQuery() {
+        return rayCastQuery.queryElement(nextPoint(), null);
+    }
+
+    /**
+     * The radar query as it was: an angle test with {@code atan2} that ignores the range, and a container test
+     * against the bounding box of the apex and the ends of the arc.
+     */
+    static class LegacyRadarQuery {
+        private double x, y;
+        private double dev;
+        private final MutableAABB aabb = AABB.create(2);
+        private double heading;
+
+        LegacyRadarQuery reset(double x, double y, double vx, double vy, double dev, double range) {
+            this.x = x;
+            this.y = y;
+            this.dev = dev;
+            this.heading = Math.atan2(vy, vx);
+            final double minAng = heading - dev;
+            final double maxAng = heading + dev;
+            final double x1 = x + range * Math.cos(minAng);
+            final double x2 = x + range * Math.cos(maxAng);
+            final double y1 = y + range * Math.sin(minAng);
+            final double y2 = y + range * Math.sin(maxAng);
+            aabb.min(AABB.X, Math.min(x, Math.min(x1, x2)));
+            aabb.max(AABB.X, Math.max(x, Math.max(x1, x2)));
+            aabb.min(AABB.Y, Math.min(y, Math.min(y1, y2)));
+            aabb.max(AABB.Y, Math.max(y, Math.max(y1, y2)));
+            return this;
+        }
+
+        QueryResult queryContainer(AABB aabb) {
+            if (this.aabb.contains(aabb) || this.aabb.intersects(aabb))
+                return QueryResult.SOME;
+            return QueryResult.NONE;
+        }
+
+        boolean queryElement(AABB aabb, Object elem) {
+            final double ang = Math.atan2(aabb.max(1) - y, aabb.max(0) - x);
+            return Math.abs(ang - heading) < dev;
+        }
+    }
+}
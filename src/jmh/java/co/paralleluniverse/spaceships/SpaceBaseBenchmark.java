@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.ElementUpdater;
+import co.paralleluniverse.spacebase.MutableAABB;
+import co.paralleluniverse.spacebase.SpaceBase;
+import co.paralleluniverse.spacebase.SpaceBaseBuilder;
+import co.paralleluniverse.spacebase.SpatialQueries;
+import co.paralleluniverse.spacebase.SpatialSetVisitor;
+import co.paralleluniverse.spacebase.SpatialToken;
+import co.paralleluniverse.spacebase.SpatialVisitor;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Microbenchmarks of the SpaceBase operations a spaceship performs every tick, on a pre-populated index.
+ * Uses the thread-blocking SpaceBase API, so no fibers are involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SpaceBaseBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int N;
+    //
+    private static final double RANGE = 100;
+    private static final double DENSITY = 3000.0 / (30000 * 30000 * 0.7); // the default spaceships.properties
+    private SpaceBase<Record<SpaceshipState>> sb;
+    private Record<SpaceshipState>[] ships;
+    private AABB[] aabbs;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        final SpaceBaseBuilder builder = new SpaceBaseBuilder();
+        builder.setOptimisticLocking(0, 3);
+        builder.setDimensions(2);
+        builder.setNodeWidth(20);
+        this.sb = builder.build("benchmark");
+
+        // keep the density constant as N grows
+        final double b = Math.sqrt(N / DENSITY / 0.7);
+        final AABB bounds = AABB.create(-b / 2, b / 2, -b / 2 * 0.7, b / 2 * 0.7);
+
+        final RandSpatial random = new RandSpatial();
+        this.ships = new Record[N];
+        this.aabbs = new AABB[N];
+        for (int i = 0; i < N; i++) {
+            final Record<SpaceshipState> s = SpaceshipState.stateType.newInstance();
+            s.set($id, i);
+            s.set($x, random.randRange(bounds.min(X), bounds.max(X)));
+            s.set($y, random.randRange(bounds.min(Y), bounds.max(Y)));
+            final AABB aabb = AABB.create(s.get($x), s.get($x), s.get($y), s.get($y));
+            s.set($token, sb.insert(s, aabb));
+            ships[i] = s;
+            aabbs[i] = aabb;
+        }
+        sb.joinAllPendingOperations();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int i;
+
+        int next(int n) {
+            final int k = i;
+            i = (i + 7919) % n; // a prime stride, so consecutive ops touch different parts of the tree
+            return k;
+        }
+    }
+
+    @Benchmark
+    public void range(Cursor cursor, final Blackhole bh) throws InterruptedException {
+        final AABB aabb = aabbs[cursor.next(N)];
+        sb.query(SpatialQueries.range(aabb, RANGE), new SpatialVisitor<Record<SpaceshipState>>() {
+            @Override
+            public void visit(Record<SpaceshipState> elem, SpatialToken token) {
+                bh.consume(elem);
+            }
+
+            @Override
+            public void done() {
+            }
+        }).join();
+    }
+
+    @Benchmark
+    public void queryForUpdate(Cursor cursor, final Blackhole bh) throws InterruptedException {
+        final int k = cursor.next(N);
+        final Record<SpaceshipState> s = ships[k];
+        final AABB aabb = aabbs[k];
+        sb.queryForUpdate(SpatialQueries.range(aabb, RANGE), SpatialQueries.equals(s, aabb), false, new SpatialSetVisitor<Record<SpaceshipState>>() {
+            @Override
+            public void visit(Set<Record<SpaceshipState>> resultReadOnly, Set<ElementUpdater<Record<SpaceshipState>>> resultForUpdate) {
+                bh.consume(resultReadOnly.size());
+                for (ElementUpdater<Record<SpaceshipState>> updater : resultForUpdate)
+                    updater.update(aabb); // touch, but don't move, so the index stays the same across iterations
+            }
+        }).join();
+    }
+}
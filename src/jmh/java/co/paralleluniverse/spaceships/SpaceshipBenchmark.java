@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.quasar.SpaceBaseBuilder;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.nio.FloatBuffer;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks of a spaceship's per-tick physics, run outside of a fiber. Only {@link #tick(Neighbors) tick} and
+ * {@link #recordTick(Neighbors) recordTick} run in a SpaceBase transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SpaceshipBenchmark {
+    private Spaceships global;
+    private Spaceship ship;
+    private Record<SpaceshipState> record;
+    private FloatBuffer buffer;
+    private long now;
+    // tick and recordTick each write a ship's record in SpaceBase, through the wrapper a ship gets from the index
+    private SpatialIndex.Session session;
+    private Record<SpaceshipState> flushed; // the record tick flushes the ship to
+    private Record<SpaceshipState> own; // the record recordTick works on
+    // recordTick's ship's private state, which ticks always kept in fields
+    private double chaseAx;
+    private double chaseAy;
+    private double exVx;
+    private double exVy;
+    private long exVelocityUpdated;
+
+    @Setup
+    public void setup() throws Exception {
+        this.global = BenchmarkWorld.create();
+        this.ship = new Spaceship(global, 0, null);
+        this.record = randomRecord(global.random, 0);
+        this.buffer = FloatBuffer.allocate(2);
+        this.now = System.currentTimeMillis();
+        ship.move(now); // sets $lastMoved
+
+        final SpaceBaseBuilder builder = new SpaceBaseBuilder();
+        builder.setDimensions(2);
+        this.session = new SpaceBaseIndex(builder.<Record<SpaceshipState>>build("spaceship-benchmark")).newSession();
+        this.flushed = insert(randomRecord(global.random, 0));
+        this.own = insert(randomRecord(global.random, 0));
+        this.chaseAx = global.random.nextGaussian() * 200;
+        this.chaseAy = global.random.nextGaussian() * 200;
+        this.exVx = own.get($exVx);
+        this.exVy = own.get($exVy);
+        this.exVelocityUpdated = own.get($exVelocityUpdated);
+    }
+
+    private Record<SpaceshipState> insert(Record<SpaceshipState> s) throws Exception {
+        return session.insert(this, s, AABB.create(s.get($x), s.get($x), s.get($y), s.get($y)));
+    }
+
+    @State(Scope.Thread)
+    public static class Neighbors {
+        @Param({"0", "5", "50", "500"})
+        public int neighbors;
+        Set<Record<SpaceshipState>> set;
+
+        @Setup
+        public void setup() {
+            final RandSpatial random = new RandSpatial();
+            this.set = new HashSet<>();
+            for (int i = 0; i < neighbors; i++)
+                set.add(randomRecord(random, i + 1));
+        }
+    }
+
+    static Record<SpaceshipState> randomRecord(RandSpatial random, int id) {
+        final Record<SpaceshipState> s = SpaceshipState.stateType.newInstance();
+        s.set($id, id);
+        s.set($x, random.randRange(-1000, 1000));
+        s.set($y, random.randRange(-1000, 1000));
+        s.set($vx, random.nextGaussian() * 20);
+        s.set($vy, random.nextGaussian() * 20);
+        s.set($ax, random.nextGaussian());
+        s.set($ay, random.nextGaussian());
+        s.set($exVx, random.nextGaussian());
+        s.set($exVy, random.nextGaussian());
+        s.set($lastMoved, System.currentTimeMillis());
+        s.set($exVelocityUpdated, System.currentTimeMillis());
+        return s;
+    }
+
+    @Benchmark
+    public void applyNeighborRejection(Neighbors neighbors) {
+        ship.applyNeighborRejection(neighbors.set, now);
+    }
+
+    @Benchmark
+    public void move() {
+        now += 30;
+        ship.move(now);
+    }
+
+    /**
+     * A tick's physics, with the ship's own state kept in fields, and written to its record once, in an update
+     * transaction.
+     */
+    @Benchmark
+    public void tick(Neighbors neighbors) throws Exception {
+        now += 30;
+        try (SpatialIndex.Result up = session.update(flushed.get($token))) {
+            ship.applyNeighborRejection(neighbors.set, now);
+            ship.move(now);
+            ship.flush(flushed);
+        }
+        ship.reduceExternalVelocity(now);
+    }
+
+    /**
+     * The same physics with every access to the ship's own state going through its record, as ticks used to work, for
+     * comparison with {@link #tick(Neighbors) tick}: a copy of the old applyNeighborRejection, move and limitSpeed,
+     * run on a record wrapped by SpaceBase, in the same kind of transaction. Neither moves the ship in the index.
+     */
+    @Benchmark
+    public void recordTick(Neighbors neighbors) throws Exception {
+        now += 30;
+        try (SpatialIndex.Result up = session.update(own.get($token))) {
+            final Record<SpaceshipState> s = own;
+            // applyNeighborRejection
+            s.set($ax, chaseAx);
+            s.set($ay, chaseAy);
+            if (neighbors.set.size() > 1) {
+                for (Record<SpaceshipState> n : neighbors.set) {
+                    if (n == s)
+                        continue;
+                    final double dx = n.get($x) - s.get($x);
+                    final double dy = n.get($y) - s.get($y);
+                    final double d = Math.max(Spaceship.mag(dx, dy), Spaceship.MIN_PROXIMITY);
+                    final double udx = dx / d;
+                    final double udy = dy / d;
+                    final double rejection = Spaceship.rejection(d);
+                    s.set($ax, s.get($ax) - rejection * udx);
+                    s.set($ay, s.get($ay) - rejection * udy);
+                }
+            }
+            // move
+            s.set($exVx, exVx);
+            s.set($exVy, exVy);
+            final long lastMoved = s.get($lastMoved);
+            if (lastMoved > 0 & now > lastMoved) {
+                double x = s.get($x);
+                double y = s.get($y);
+                double vx = s.get($vx);
+                double vy = s.get($vy);
+                double ax = s.get($ax);
+                double ay = s.get($ay);
+                final AABB bounds = global.bounds;
+                final double duration = (double) (now - lastMoved) / TimeUnit.SECONDS.toMillis(1);
+                final double duration2 = duration * duration;
+                x = x + (vx + exVx) * duration + ax * duration2 / 2.0;
+                y = y + (vy + exVy) * duration + ay * duration2 / 2.0;
+                vx = vx + ax * duration;
+                vy = vy + ay * duration;
+                s.set($vx, vx);
+                s.set($vy, vy);
+                // limitSpeed
+                final double speed = Spaceship.mag(s.get($vx), s.get($vy));
+                if (speed > Spaceship.SPEED_LIMIT) {
+                    s.set($vx, s.get($vx) / speed * Spaceship.SPEED_LIMIT);
+                    s.set($vy, s.get($vy) / speed * Spaceship.SPEED_LIMIT);
+                }
+                vx = s.get($vx);
+                vy = s.get($vy);
+                if (x > bounds.max(X) || x < bounds.min(X)) {
+                    x = Math.max(Math.min(x, bounds.max(X)), bounds.min(X));
+                    vx = -vx * Spaceship.SPEED_BOUNCE_DAMPING;
+                    ax = 0;
+                }
+                if (y > bounds.max(Y) || y < bounds.min(Y)) {
+                    y = Math.max(Math.min(y, bounds.max(Y)), bounds.min(Y));
+                    vy = -vy * Spaceship.SPEED_BOUNCE_DAMPING;
+                    ay = 0;
+                }
+                s.set($x, x);
+                s.set($y, y);
+                s.set($vx, vx);
+                s.set($vy, vy);
+                s.set($ax, ax);
+                s.set($ay, ay);
+            }
+            s.set($lastMoved, now);
+            s.set($exVelocityUpdated, exVelocityUpdated);
+        }
+        // reduceExternalVelocity
+        final double duration = (double) (now - exVelocityUpdated) / TimeUnit.SECONDS.toMillis(1);
+        if (exVelocityUpdated > 0 & duration > 0) {
+            exVx /= (1 + 8 * duration);
+            exVy /= (1 + 8 * duration);
+        }
+        exVelocityUpdated = now;
+    }
+
+    @Benchmark
+    public void limitSpeed() {
+        ship.limitSpeed();
+    }
+
+    @Benchmark
+    public float getCurrentLocation() {
+        buffer.clear();
+        Spaceship.getCurrentLocation(record, record.get($lastMoved) + 15, buffer);
+        return buffer.get(0);
+    }
+
+    @Benchmark
+    public double getCurrentHeading() {
+        return Spaceship.getCurrentHeading(record, record.get($lastMoved) + 15);
+    }
+}
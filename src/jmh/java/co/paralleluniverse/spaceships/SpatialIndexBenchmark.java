@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.quasar.SpaceBaseBuilder;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Compares the spatial index implementations on the transactions a spaceship performs every tick, with a fixed
+ * number of ships at several densities. Run with {@code -t <threads>} to measure them under contention.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SpatialIndexBenchmark {
+    @Param({"spacebase", "grid"})
+    public String index;
+    @Param({"1", "10", "100"})
+    public int density; // relative to the default spaceships.properties
+    //
+    private static final int N = 100000;
+    private static final double RANGE = 100;
+    private static final double DEFAULT_DENSITY = 3000.0 / (30000 * 30000 * 0.7);
+    private SpatialIndex idx;
+    private Record<SpaceshipState>[] ships;
+    private AABB[] aabbs;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception {
+        final double b = Math.sqrt(N / (DEFAULT_DENSITY * density) / 0.7);
+        final AABB bounds = AABB.create(-b / 2, b / 2, -b / 2 * 0.7, b / 2 * 0.7);
+
+        switch (index) {
+            case "spacebase":
+                final SpaceBaseBuilder builder = new SpaceBaseBuilder();
+                builder.setOptimisticLocking(0, 3);
+                builder.setDimensions(2);
+                builder.setNodeWidth(20);
+                this.idx = new SpaceBaseIndex(builder.<Record<SpaceshipState>>build("benchmark"));
+                break;
+            case "grid":
+                this.idx = new GridIndex(bounds, RANGE, 1024);
+                break;
+            default:
+                throw new IllegalArgumentException(index);
+        }
+
+        final RandSpatial random = new RandSpatial(1);
+        this.ships = new Record[N];
+        this.aabbs = new AABB[N];
+        for (int i = 0; i < N; i++) {
+            final Record<SpaceshipState> s = SpaceshipState.stateType.newInstance();
+            s.set($id, i);
+            s.set($x, random.randRange(bounds.min(X), bounds.max(X)));
+            s.set($y, random.randRange(bounds.min(Y), bounds.max(Y)));
+            s.set($vx, random.randRange(-1, 1));
+            s.set($vy, random.randRange(-1, 1));
+            final AABB aabb = AABB.create(s.get($x), s.get($x), s.get($y), s.get($y));
+            s.set($token, idx.insert(s, aabb));
+            ships[i] = s;
+            aabbs[i] = aabb;
+        }
+        idx.joinAllPendingOperations();
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        SpatialIndex.Session session;
+        final PointRangeQuery query = new PointRangeQuery();
+        final RadarQuery radar = new RadarQuery(Math.toRadians(30), Spaceship.MAX_SEARCH_RANGE);
+        final NearestQuery nearest = new NearestQuery();
+        int i = ThreadLocalRandom.current().nextInt(1 << 20); // threads start at different ships
+
+        SpatialIndex.Session session(SpatialIndex idx) {
+            if (session == null)
+                session = idx.newSession();
+            return session;
+        }
+
+        int next(int n) {
+            final int k = i % n;
+            i = (k + 7919) % n; // a prime stride, so consecutive ops touch different parts of the index
+            return k;
+        }
+    }
+
+    @Benchmark
+    public void range(Worker w, Blackhole bh) throws Exception {
+        final Record<SpaceshipState> s = ships[w.next(N)];
+        try (SpatialIndex.Result rs = w.session(idx).query(w.query.reset(s.get($x), s.get($y), RANGE))) {
+            bh.consume(rs.elements().size());
+        }
+    }
+
+    /**
+     * Target acquisition by scanning all ships on the radar
+     */
+    @Benchmark
+    public void radarTarget(Worker w, Blackhole bh) throws Exception {
+        final Record<SpaceshipState> s = ships[w.next(N)];
+        try (SpatialIndex.Result rs = w.session(idx).query(w.radar.reset(s.get($x), s.get($y), s.get($vx), s.get($vy)))) {
+            Record<SpaceshipState> nearest = null;
+            double nearestDistance2 = Double.MAX_VALUE;
+            for (Record<SpaceshipState> t : rs.elements()) {
+                final double dx = t.get($x) - s.get($x);
+                final double dy = t.get($y) - s.get($y);
+                final double d2 = dx * dx + dy * dy;
+                if (d2 > 100 & d2 < nearestDistance2) {
+                    nearest = t;
+                    nearestDistance2 = d2;
+                }
+            }
+            bh.consume(nearest);
+        }
+    }
+
+    /**
+     * Target acquisition with a nearest query
+     */
+    @Benchmark
+    public void nearestTarget(Worker w, Blackhole bh) throws Exception {
+        final Record<SpaceshipState> s = ships[w.next(N)];
+        w.radar.reset(s.get($x), s.get($y), s.get($vx), s.get($vy));
+        try (SpatialIndex.Result rs = w.session(idx).nearest(w.nearest.reset(s.get($x), s.get($y), 10, w.radar))) {
+            bh.consume(rs.element());
+        }
+    }
+
+    @Benchmark
+    public void queryForUpdate(Worker w, Blackhole bh) throws Exception {
+        final int k = w.next(N);
+        final Record<SpaceshipState> s = ships[k];
+        final AABB aabb = aabbs[k];
+        try (SpatialIndex.Result rs = w.session(idx).queryForUpdate(w.query.reset(s.get($x), s.get($y), RANGE), s, aabb)) {
+            bh.consume(rs.elements().size());
+            rs.update(aabb); // touch, but don't move, so the index stays the same across iterations
+        }
+    }
+}
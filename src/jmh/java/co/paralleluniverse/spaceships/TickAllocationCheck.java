@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Fails (exits with status 1) if a ship's neighbor transaction allocates more than {@link #BUDGET_BYTES_PER_TICK} on
+ * average once the JIT has warmed up. Each measured tick queries a ship's neighbors for update, applies their
+ * rejection, moves the ship and flushes it to its record, on a plain thread, and the bytes the thread allocates are
+ * measured. Run by {@code ./gradlew allocationCheck}; it isn't part of {@code check}, as the budget has yet to be
+ * calibrated on a real JVM.
+ *
+ * This is not the whole tick. Target search, shooting, the blast field and the actor's {@code doRun} loop (receiving
+ * the tick, rescheduling it) only run inside a started actor, and aren't measured here; neither is the allocation of
+ * the index's worker threads. The budget is only enforced on a {@link GridIndex}. Given the {@code configured-index}
+ * argument, the same transaction is also measured on the world's configured index (SpaceBase, by default) and
+ * reported, but not checked: SpaceBase's transactions allocate internally, by amounts we don't control. The whole tick,
+ * on any index, is measured by the headless benchmark, whose {@code benchmark-max-alloc-per-tick} fails the run if it
+ * allocates too much.
+ */
+public class TickAllocationCheck {
+    static final long BUDGET_BYTES_PER_TICK = 8; // not yet calibrated: a steady-state neighbor transaction on the grid shouldn't allocate at all
+    private static final int N = 10000;
+    private static final int WARMUP_TICKS = 200000;
+    private static final int TICKS = 1000000;
+    //
+    private final Spaceship ship;
+    private final SpatialIndex index;
+    private final SpatialIndex.Session session;
+    private final PointRangeQuery query = new PointRangeQuery();
+    private final Record<SpaceshipState>[] ships;
+    private final AABB[] aabbs;
+    private final double range;
+    private long now = System.currentTimeMillis();
+    private int next;
+
+    @SuppressWarnings("unchecked")
+    TickAllocationCheck(Spaceships global, SpatialIndex index) {
+        this.ship = new Spaceship(global, 0, null);
+        this.range = global.range;
+        this.index = index;
+        this.session = index.newSession();
+        this.ships = new Record[N];
+        this.aabbs = new AABB[N];
+        final RandSpatial random = new RandSpatial(1);
+        for (int i = 0; i < N; i++) {
+            final Record<SpaceshipState> s = SpaceshipState.stateType.newInstance();
+            s.set($id, i + 1);
+            s.set($x, random.randRange(global.bounds.min(X), global.bounds.max(X)));
+            s.set($y, random.randRange(global.bounds.min(Y), global.bounds.max(Y)));
+            final AABB aabb = AABB.create(s.get($x), s.get($x), s.get($y), s.get($y));
+            s.set($token, index.insert(s, aabb));
+            ships[i] = s;
+            aabbs[i] = aabb;
+        }
+        ship.move(now); // sets lastMoved
+    }
+
+    /**
+     * One neighbor transaction: queries the neighbors of one of the indexed ships for update, applies their rejection to the
+     * checked ship, moves it, flushes it to its record, and touches the queried ship's bounds.
+     */
+    void tick() throws Exception {
+        now += Spaceship.MIN_PERIOD_MILLIS;
+        final int k = next;
+        next = (next + 7919) % N; // a prime stride, so consecutive ticks touch different parts of the index
+        final Record<SpaceshipState> s = ships[k];
+        try (SpatialIndex.Result rs = session.queryForUpdate(query.reset(s.get($x), s.get($y), range), s, aabbs[k])) {
+            ship.applyNeighborRejection(rs.elements(), now);
+            ship.move(now);
+            ship.flush();
+            rs.update(aabbs[k]); // touch, but don't move, so the index stays the same across ticks
+        }
+    }
+
+    /**
+     * @return the bytes allocated per tick
+     */
+    double measure() throws Exception {
+        for (int i = 0; i < WARMUP_TICKS; i++)
+            tick();
+        final long allocated0 = allocatedBytes();
+        for (int i = 0; i < TICKS; i++)
+            tick();
+        return (double) (allocatedBytes() - allocated0) / TICKS;
+    }
+
+    /**
+     * The bytes allocated so far by the current thread.
+     */
+    private static long allocatedBytes() {
+        final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+            throw new UnsupportedOperationException("This JVM can't measure allocations");
+        final com.sun.management.ThreadMXBean threads1 = (com.sun.management.ThreadMXBean) threads;
+        threads1.setThreadAllocatedMemoryEnabled(true);
+        return threads1.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Spaceships global = BenchmarkWorld.create();
+        if (Arrays.asList(args).contains("configured-index")) {
+            final double configured = new TickAllocationCheck(global, global.index).measure();
+            System.out.println("Allocation per neighbor transaction on " + global.index.getClass().getSimpleName() + ": " + configured + " bytes (not checked)");
+        }
+        final double grid = new TickAllocationCheck(global, new GridIndex(global.bounds, Math.max(global.range, 50), 1024)).measure();
+        System.out.println("Allocation per neighbor transaction on GridIndex: " + grid + " bytes (budget: " + BUDGET_BYTES_PER_TICK + " bytes)");
+        if (grid > BUDGET_BYTES_PER_TICK) {
+            System.err.println("A ship's neighbor transaction allocates more than its budget");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
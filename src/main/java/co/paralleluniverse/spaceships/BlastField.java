@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Recent explosions, bucketed in a grid of cells the size of the blast range. An explosion is published once, and
+ * every ship picks up the explosions around it when it next moves, instead of the exploding ship sending a message to
+ * each of its neighbors.
+ *
+ * Each cell keeps its latest explosions in a ring buffer. Explosions are stamped with the time they're published
+ * while the cell is write-locked, and read with an optimistic read, so a ship that collects the explosions that
+ * happened before its current tick sees each of them exactly once (unless the ring has been overwritten in between).
+ */
+final class BlastField {
+    private static final int CAPACITY = 16; // explosions kept per cell
+    //
+    private final Spaceships global;
+    private final double range;
+    private final double minX;
+    private final double minY;
+    private final int width;
+    private final int height;
+    private final Cell[] cells;
+
+    BlastField(Spaceships global, AABB bounds, double range) {
+        this.global = global;
+        this.range = range;
+        this.minX = bounds.min(X);
+        this.minY = bounds.min(Y);
+        this.width = (int) Math.ceil((bounds.max(X) - minX) / range) + 1;
+        this.height = (int) Math.ceil((bounds.max(Y) - minY) / range) + 1;
+        this.cells = new Cell[width * height];
+        for (int i = 0; i < cells.length; i++)
+            cells[i] = new Cell();
+    }
+
+    /**
+     * Publishes an explosion at the given position, stamped with the current time.
+     */
+    void publish(double x, double y) {
+        final Cell cell = cells[column(x) + row(y) * width];
+        final long stamp = cell.lock.writeLock();
+        try {
+            final long time = global.now(); // must be taken while holding the lock
+            final int i = cell.next;
+            cell.x[i] = x;
+            cell.y[i] = y;
+            cell.time[i] = time;
+            cell.next = (i + 1) % CAPACITY;
+            cell.latest = time;
+        } finally {
+            cell.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Sums the velocity changes caused by the explosions within range of the given position that have been published
+     * since the cursor's last call, and before {@code now}.
+     */
+    void collect(Cursor cursor, double x, double y, long now) {
+        final long from = cursor.last;
+        cursor.last = now;
+        cursor.dvx = 0;
+        cursor.dvy = 0;
+        cursor.count = 0;
+        if (now <= from)
+            return;
+
+        final int c0 = column(x - range);
+        final int c1 = column(x + range);
+        final int r0 = row(y - range);
+        final int r1 = row(y + range);
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                final Cell cell = cells[c + r * width];
+                long stamp = cell.lock.tryOptimisticRead();
+                if (cell.latest < from && cell.lock.validate(stamp))
+                    continue; // nothing new here
+
+                final double dvx = cursor.dvx;
+                final double dvy = cursor.dvy;
+                final int count = cursor.count;
+                cell.scan(cursor, x, y, from, now);
+                if (!cell.lock.validate(stamp)) {
+                    // a ship has exploded here while we were reading
+                    cursor.dvx = dvx;
+                    cursor.dvy = dvy;
+                    cursor.count = count;
+                    stamp = cell.lock.readLock();
+                    try {
+                        cell.scan(cursor, x, y, from, now);
+                    } finally {
+                        cell.lock.unlockRead(stamp);
+                    }
+                }
+            }
+        }
+    }
+
+    private int column(double x) {
+        return Math.max(0, Math.min(width - 1, (int) ((x - minX) / range)));
+    }
+
+    private int row(double y) {
+        return Math.max(0, Math.min(height - 1, (int) ((y - minY) / range)));
+    }
+
+    /**
+     * A ship's position in the stream of explosions, and the velocity change caused by the explosions it has last
+     * collected.
+     */
+    static final class Cursor {
+        private long last;
+        double dvx;
+        double dvy;
+        int count;
+
+        /**
+         * Ignores all explosions published before the given time.
+         */
+        void since(long time) {
+            this.last = time;
+        }
+    }
+
+    private final class Cell {
+        final StampedLock lock = new StampedLock();
+        final double[] x = new double[CAPACITY];
+        final double[] y = new double[CAPACITY];
+        final long[] time = new long[CAPACITY];
+        int next;
+        long latest = Long.MIN_VALUE;
+
+        // may see inconsistent values when called under an optimistic read, but must not throw
+        void scan(Cursor cursor, double x0, double y0, long from, long now) {
+            for (int i = 0; i < CAPACITY; i++) {
+                final long t = time[i];
+                if (t < from | t >= now)
+                    continue;
+                final double dx = x[i] - x0;
+                final double dy = y[i] - y0;
+                final double d = Spaceship.mag(dx, dy);
+                if (d < Spaceship.MIN_PROXIMITY | d > range)
+                    continue;
+                final double recoil = Spaceship.blastRecoil(d);
+                cursor.dvx += recoil * dx / d;
+                cursor.dvy += recoil * dy / d;
+                cursor.count++;
+            }
+        }
+    }
+}
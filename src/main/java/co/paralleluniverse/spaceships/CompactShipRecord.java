@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.actors.ActorRef;
+import co.paralleluniverse.data.record.AbstractRecord;
+import co.paralleluniverse.data.record.Field;
+import co.paralleluniverse.spacebase.SpatialToken;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.io.Serializable;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SpaceshipState} record that takes about half the space of the default layout: positions, velocities and
+ * accelerations are stored as floats, timestamps as unsigned int millisecond offsets from {@link #EPOCH}, and the
+ * status as a byte. Values are converted on access, so a value read back may be less precise than the one written.
+ */
+final class CompactShipRecord extends AbstractRecord<SpaceshipState> implements Serializable {
+    /**
+     * The system property holding the epoch, set from the {@code compact-state-epoch} property
+     */
+    static final String EPOCH_PROPERTY = "co.paralleluniverse.spaceships.compactStateEpoch";
+    /**
+     * The world epoch, in milliseconds since 1970, which all nodes must share. It's configured, as nodes don't start
+     * at the same time, and defaults to an hour before this class is loaded (should the clock be set back a little),
+     * which is only good for a single node. Timestamps up to 49 days after it can be stored.
+     */
+    static final long EPOCH = Long.getLong(EPOCH_PROPERTY, System.currentTimeMillis() - TimeUnit.HOURS.toMillis(1));
+    private static final long MAX_OFFSET = 0xfffffffeL; // the last unsigned int is ZERO_TIME
+    private static final long MIN_RUN = TimeUnit.DAYS.toMillis(1); // the least time left before the offsets run out
+    private static final int ZERO_TIME = -1; // a timestamp of 0 means "never"
+    private static final Spaceship.Status[] STATUSES = Spaceship.Status.values();
+    private int id;
+    private float x;
+    private float y;
+    private float vx;
+    private float vy;
+    private float ax;
+    private float ay;
+    private float exVx;
+    private float exVy;
+    private float shotLength;
+    private int lastMoved = ZERO_TIME;
+    private int timeFired = ZERO_TIME;
+    private int blowTime = ZERO_TIME;
+    private int exVelocityUpdated = ZERO_TIME;
+    private byte status = -1; // null
+    private transient SpatialToken token;
+    private transient ActorRef<Spaceship.SpaceshipMessage> spaceship;
+    private transient ImpulseMailbox impulses;
+    private transient ShipSnapshot snapshot;
+
+    CompactShipRecord() {
+        super(stateType);
+    }
+
+    @Override
+    public int get(Field.IntField<? super SpaceshipState> field) {
+        if (field == $id)
+            return id;
+        return super.get(field);
+    }
+
+    @Override
+    public void set(Field.IntField<? super SpaceshipState> field, int value) {
+        if (field == $id)
+            id = value;
+        else
+            super.set(field, value);
+    }
+
+    @Override
+    public double get(Field.DoubleField<? super SpaceshipState> field) {
+        if (field == $x)
+            return x;
+        if (field == $y)
+            return y;
+        if (field == $vx)
+            return vx;
+        if (field == $vy)
+            return vy;
+        if (field == $ax)
+            return ax;
+        if (field == $ay)
+            return ay;
+        if (field == $exVx)
+            return exVx;
+        if (field == $exVy)
+            return exVy;
+        if (field == $shotLength)
+            return shotLength;
+        return super.get(field);
+    }
+
+    @Override
+    public void set(Field.DoubleField<? super SpaceshipState> field, double value) {
+        final float v = (float) value;
+        if (field == $x)
+            x = v;
+        else if (field == $y)
+            y = v;
+        else if (field == $vx)
+            vx = v;
+        else if (field == $vy)
+            vy = v;
+        else if (field == $ax)
+            ax = v;
+        else if (field == $ay)
+            ay = v;
+        else if (field == $exVx)
+            exVx = v;
+        else if (field == $exVy)
+            exVy = v;
+        else if (field == $shotLength)
+            shotLength = v;
+        else
+            super.set(field, value);
+    }
+
+    @Override
+    public long get(Field.LongField<? super SpaceshipState> field) {
+        if (field == $lastMoved)
+            return time(lastMoved);
+        if (field == $timeFired)
+            return time(timeFired);
+        if (field == $blowTime)
+            return time(blowTime);
+        if (field == $exVelocityUpdated)
+            return time(exVelocityUpdated);
+        return super.get(field);
+    }
+
+    @Override
+    public void set(Field.LongField<? super SpaceshipState> field, long value) {
+        if (field == $lastMoved)
+            lastMoved = offset(value);
+        else if (field == $timeFired)
+            timeFired = offset(value);
+        else if (field == $blowTime)
+            blowTime = offset(value);
+        else if (field == $exVelocityUpdated)
+            exVelocityUpdated = offset(value);
+        else
+            super.set(field, value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V> V get(Field.ObjectField<? super SpaceshipState, V> field) {
+        if (field == $token)
+            return (V) token;
+        if (field == $status)
+            return (V) (status >= 0 ? STATUSES[status] : null);
+        if (field == $spaceship)
+            return (V) spaceship;
+        if (field == $impulses)
+            return (V) impulses;
+        if (field == $snapshot)
+            return (V) snapshot;
+        return super.get(field);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V> void set(Field.ObjectField<? super SpaceshipState, V> field, V value) {
+        if (field == $token)
+            token = (SpatialToken) value;
+        else if (field == $status)
+            status = value != null ? (byte) ((Spaceship.Status) value).ordinal() : -1;
+        else if (field == $spaceship)
+            spaceship = (ActorRef<Spaceship.SpaceshipMessage>) value;
+        else if (field == $impulses)
+            impulses = (ImpulseMailbox) value;
+        else if (field == $snapshot)
+            snapshot = (ShipSnapshot) value;
+        else
+            super.set(field, value);
+    }
+
+    /**
+     * Makes sure timestamps from now on can be stored for at least a day, so that a bad epoch fails at startup
+     * rather than in the middle of a run.
+     */
+    static void checkEpoch(long now) {
+        if (now < EPOCH || now - EPOCH > MAX_OFFSET - MIN_RUN)
+            throw new IllegalArgumentException("compact-state-epoch " + EPOCH + " (" + new Date(EPOCH) + ") must be before now, "
+                    + "and less than " + TimeUnit.MILLISECONDS.toDays(MAX_OFFSET - MIN_RUN) + " days ago");
+    }
+
+    /**
+     * The last time that can be stored
+     */
+    static long lastTime() {
+        return EPOCH + MAX_OFFSET;
+    }
+
+    private static long time(int offset) {
+        return offset == ZERO_TIME ? 0 : EPOCH + Integer.toUnsignedLong(offset);
+    }
+
+    private static int offset(long time) {
+        if (time == 0)
+            return ZERO_TIME;
+        final long offset = time - EPOCH;
+        if (offset < 0 || offset > MAX_OFFSET)
+            throw new IllegalArgumentException("Time " + time + " is too far from the epoch " + EPOCH);
+        return (int) offset;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.db.tree.QueryResult;
+import co.paralleluniverse.spacebase.AABB;
+import co.paralleluniverse.spacebase.BoundedSpatialQuery;
+import co.paralleluniverse.spacebase.MutableAABB;
+
+/**
+ * A reusable version of {@link co.paralleluniverse.spacebase.SpatialQueries#equals(Object, AABB) SpatialQueries.equals},
+ * so that a spaceship need not allocate a new query on every tick.
+ * An instance must not be reset while a query using it is in progress.
+ */
+class ElementEqualsQuery implements BoundedSpatialQuery<Object> {
+    private final MutableAABB aabb = AABB.create(2);
+    private Object elem;
+
+    public ElementEqualsQuery reset(Object elem, AABB aabb) {
+        this.elem = elem;
+        this.aabb.copy(aabb);
+        return this;
+    }
+
+    @Override
+    public AABB getBounds() {
+        return aabb;
+    }
+
+    @Override
+    public QueryResult queryContainer(AABB aabb) {
+        return aabb.contains(this.aabb) ? QueryResult.SOME : QueryResult.NONE;
+    }
+
+    @Override
+    public boolean queryElement(AABB aabb, Object elem) {
+        return this.aabb.equals(aabb) && this.elem.equals(elem);
+    }
+
+    @Override
+    public String toString() {
+        return "ElementEqualsQuery(" + elem + ", " + aabb + ')';
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.db.quasar.MigrationListener;
+import co.paralleluniverse.db.tree.QueryResult;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.BoundedSpatialQuery;
+import co.paralleluniverse.spacebase.MutableAABB;
+import co.paralleluniverse.spacebase.SpatialQuery;
+import co.paralleluniverse.spacebase.SpatialToken;
+import co.paralleluniverse.spacebase.SpatialVisitor;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
+
+/**
+ * A {@link SpatialIndex} that hashes elements into a uniform grid of square cells.
+ * Elements are assumed to be points (or at least much smaller than a cell), and each is kept in the cell containing
+ * its center. A query scans the cells its bounds overlap (the whole grid for a query that isn't a
+ * {@link BoundedSpatialQuery}), so the cell size should be on the order of the typical query range.
+ *
+ * The cells are guarded by a fixed number of striped locks. A transaction read-locks the stripes of all cells it
+ * scans, and write-locks the stripe of the element it updates, always in ascending stripe order so that transactions
+ * can't deadlock. {@link StampedLock}s are used because they aren't owned by a thread, and a fiber might be resumed
+ * on a different thread than the one that locked them.
+ *
+ * An element that moves to a cell whose stripe can't be locked without blocking is moved only after its transaction
+ * completes; until then a concurrent query might miss it if it doesn't overlap the element's old cell.
+ */
+class GridIndex implements SpatialIndex {
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int width;
+    private final int height;
+    private final StampedLock[] stripes;
+    private final int stripeMask;
+    private final Entry[][] cells; // guarded by the cell's stripe
+    private final int[] cellSizes; // guarded by the cell's stripe
+
+    GridIndex(AABB bounds, double cellSize, int stripes) {
+        this.minX = bounds.min(X);
+        this.minY = bounds.min(Y);
+        this.cellSize = cellSize;
+        this.width = (int) Math.ceil((bounds.max(X) - bounds.min(X)) / cellSize) + 1;
+        this.height = (int) Math.ceil((bounds.max(Y) - bounds.min(Y)) / cellSize) + 1;
+
+        final int n = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1; // round up to a power of 2
+        this.stripes = new StampedLock[n];
+        for (int i = 0; i < n; i++)
+            this.stripes[i] = new StampedLock();
+        this.stripeMask = n - 1;
+
+        this.cells = new Entry[width * height][];
+        this.cellSizes = new int[width * height];
+    }
+
+    @Override
+    public Session newSession() {
+        return new GridSession();
+    }
+
+    @Override
+    public SpatialToken insert(Record<SpaceshipState> s, AABB bounds) {
+        final Entry e = new Entry(s);
+        copy(bounds, e.bounds);
+        final int c = cell(bounds);
+        final StampedLock lock = stripes[stripe(c)];
+        final long stamp = lock.writeLock();
+        try {
+            add(c, e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        return e;
+    }
+
+    /**
+     * Hashes the elements in parallel, and sizes each cell's array to fit exactly.
+     */
+    @Override
+    public void insertAll(Object[] owners, Record<SpaceshipState>[] ss, AABB[] bounds) {
+        final Entry[] entries = new Entry[ss.length];
+        final int[] cellOf = new int[ss.length];
+        IntStream.range(0, ss.length).parallel().forEach(i -> {
+            final Entry e = new Entry(ss[i]);
+            copy(bounds[i], e.bounds);
+            ss[i].set($token, e);
+            entries[i] = e;
+            cellOf[i] = cell(bounds[i]);
+        });
+
+        final int[] counts = new int[cells.length];
+        for (int c : cellOf)
+            counts[c]++;
+        for (int i = 0; i < entries.length; i++) {
+            final int c = cellOf[i];
+            final StampedLock lock = stripes[stripe(c)];
+            final long stamp = lock.writeLock();
+            try {
+                if (cells[c] == null)
+                    cells[c] = new Entry[Math.max(4, counts[c])];
+                add(c, entries[i]);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Override
+    public void update(SpatialToken token, AABB bounds) {
+        final Entry e = (Entry) token;
+        final int c = e.cell;
+        if (c < 0)
+            return;
+        final int newCell = cell(bounds);
+        if (newCell == c) {
+            final StampedLock lock = stripes[stripe(c)];
+            final long stamp = lock.writeLock();
+            try {
+                copy(bounds, e.bounds);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        } else {
+            copy(bounds, e.bounds); // the element is only moved by one thread; a concurrent reader might see it torn
+            relocate(e, newCell);
+        }
+    }
+
+    @Override
+    public void delete(SpatialToken token) {
+        final Entry e = (Entry) token;
+        final int c = e.cell;
+        if (c < 0)
+            return;
+        final StampedLock lock = stripes[stripe(c)];
+        final long stamp = lock.writeLock();
+        try {
+            remove(e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void query(SpatialQuery<? super Record<SpaceshipState>> query, SpatialVisitor<Record<SpaceshipState>> visitor) {
+        final MutableAABB cellBounds = AABB.create(2);
+        final AABB b = query instanceof BoundedSpatialQuery ? ((BoundedSpatialQuery<?>) query).getBounds() : null;
+        final int cx0 = b != null ? cellX(b.min(X)) : 0;
+        final int cx1 = b != null ? cellX(b.max(X)) : width - 1;
+        final int cy0 = b != null ? cellY(b.min(Y)) : 0;
+        final int cy1 = b != null ? cellY(b.max(Y)) : height - 1;
+        for (int cy = cy0; cy <= cy1; cy++) {
+            for (int cx = cx0; cx <= cx1; cx++) {
+                if (query.queryContainer(cellBounds(cx, cy, cellBounds)) == QueryResult.NONE)
+                    continue;
+                final int c = cy * width + cx;
+                final StampedLock lock = stripes[stripe(c)];
+                final long stamp = lock.readLock();
+                try {
+                    final Entry[] entries = cells[c];
+                    for (int i = 0, n = cellSizes[c]; i < n; i++) {
+                        final Entry e = entries[i];
+                        if (query.queryElement(e.bounds, e.record))
+                            visitor.visit(e.record, e);
+                    }
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+        }
+        visitor.done();
+    }
+
+    @Override
+    public void joinAllPendingOperations() {
+    }
+
+    private int cellX(double x) {
+        return Math.min(width - 1, Math.max(0, (int) ((x - minX) / cellSize)));
+    }
+
+    private int cellY(double y) {
+        return Math.min(height - 1, Math.max(0, (int) ((y - minY) / cellSize)));
+    }
+
+    private int cell(AABB aabb) {
+        return cellY((aabb.min(Y) + aabb.max(Y)) / 2) * width + cellX((aabb.min(X) + aabb.max(X)) / 2);
+    }
+
+    private int stripe(int cell) {
+        return cell & stripeMask; // neighboring cells fall on different stripes
+    }
+
+    private AABB cellBounds(int cx, int cy, MutableAABB aabb) {
+        aabb.min(X, minX + cx * cellSize);
+        aabb.max(X, minX + (cx + 1) * cellSize);
+        aabb.min(Y, minY + cy * cellSize);
+        aabb.max(Y, minY + (cy + 1) * cellSize);
+        return aabb;
+    }
+
+    // must hold the cell's stripe for writing
+    private void add(int c, Entry e) {
+        Entry[] entries = cells[c];
+        final int n = cellSizes[c];
+        if (entries == null)
+            entries = cells[c] = new Entry[4];
+        else if (n == entries.length)
+            entries = cells[c] = Arrays.copyOf(entries, n * 2);
+        entries[n] = e;
+        cellSizes[c] = n + 1;
+        e.slot = n;
+        e.cell = c;
+    }
+
+    // must hold the element's cell's stripe for writing
+    private void remove(Entry e) {
+        final int c = e.cell;
+        final Entry[] entries = cells[c];
+        final int n = cellSizes[c] - 1;
+        final Entry last = entries[n];
+        entries[e.slot] = last;
+        last.slot = e.slot;
+        entries[n] = null;
+        cellSizes[c] = n;
+        e.cell = -1;
+    }
+
+    /**
+     * Moves an element to a new cell. Must be called by the element's owner while holding no locks.
+     */
+    private void relocate(Entry e, int newCell) {
+        final int c = e.cell;
+        if (c < 0 || c == newCell)
+            return;
+        final int s1 = Math.min(stripe(c), stripe(newCell));
+        final int s2 = Math.max(stripe(c), stripe(newCell));
+        final long stamp1 = stripes[s1].writeLock();
+        final long stamp2 = s2 != s1 ? stripes[s2].writeLock() : 0;
+        try {
+            remove(e);
+            add(newCell, e);
+        } finally {
+            if (s2 != s1)
+                stripes[s2].unlockWrite(stamp2);
+            stripes[s1].unlockWrite(stamp1);
+        }
+    }
+
+    private static void copy(AABB from, MutableAABB to) {
+        to.min(X, from.min(X));
+        to.max(X, from.max(X));
+        to.min(Y, from.min(Y));
+        to.max(Y, from.max(Y));
+    }
+
+    private class GridSession implements Session, Result {
+        private final MutableAABB cellBounds = AABB.create(2);
+        private final ArrayList<Record<SpaceshipState>> elements = new ArrayList<>();
+        private int[] scanned = new int[16]; // cells
+        private double[] distances = new double[16]; // of the scanned cells from a nearest query's point
+        private int scannedCount;
+        private int[] held = new int[16]; // stripes, ascending
+        private long[] stamps = new long[16];
+        private int heldCount;
+        private int writeStripe = -1;
+        private Entry updated;
+        private Record<SpaceshipState> element;
+        private int pendingCell = -1;
+
+        @Override
+        public Record<SpaceshipState> insert(Object owner, Record<SpaceshipState> state, AABB bounds) {
+            final Entry e = new Entry(state);
+            state.set($token, e);
+            copy(bounds, e.bounds);
+            final int c = cell(bounds);
+            final StampedLock lock = stripes[stripe(c)];
+            final long stamp = lock.writeLock();
+            try {
+                add(c, e);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return state;
+        }
+
+        @Override
+        public Record<SpaceshipState> adopt(Record<SpaceshipState> state) {
+            return state;
+        }
+
+        @Override
+        public void delete(SpatialToken token) {
+            GridIndex.this.delete(token);
+        }
+
+        @Override
+        public void setMigrationWatch(SpatialToken token, MigrationListener listener) {
+            // the grid is never distributed
+        }
+
+        @Override
+        public Result query(SpatialQuery<? super Record<SpaceshipState>> query) {
+            scan(query);
+            lockAll();
+            collect(query);
+            return this;
+        }
+
+        @Override
+        public Result queryForUpdate(SpatialQuery<? super Record<SpaceshipState>> query, Record<SpaceshipState> me, AABB myBounds) {
+            final Entry e = (Entry) me.get($token);
+            for (;;) {
+                final int c = e.cell;
+                scan(query);
+                if (c < 0) { // deleted: the query is answered, but there's nothing to update
+                    lockAll();
+                    collect(query);
+                    return this;
+                }
+                this.writeStripe = stripe(c);
+                hold(writeStripe);
+                lockAll();
+                if (e.cell == c)
+                    break;
+                unlockAll(); // moved (by the group committer); try again
+            }
+            collect(query);
+            this.updated = e;
+            return this;
+        }
+
+        @Override
+        public Result read(SpatialToken token) {
+            final Entry e = (Entry) token;
+            for (;;) {
+                final int c = e.cell;
+                if (c < 0)
+                    return this; // gone
+                final int s = stripe(c);
+                final long stamp = stripes[s].readLock();
+                if (e.cell == c) {
+                    held[0] = s;
+                    stamps[0] = stamp;
+                    heldCount = 1;
+                    this.element = e.record;
+                    return this;
+                }
+                stripes[s].unlockRead(stamp); // moved; try again
+            }
+        }
+
+        /**
+         * Visits the cells the query might need in order of their distance from the point, locking one at a time, and
+         * stops once no unvisited cell can hold an element nearer than the one found, so farther cells are neither
+         * locked nor scanned. The element found is then read as by {@link #read(SpatialToken) read}, which locks its
+         * cell until the result is closed; another element may have moved nearer in between.
+         */
+        @Override
+        public Result nearest(NearestQuery query) {
+            scan(query);
+            heldCount = 0; // cells are locked one at a time below
+            if (distances.length < scannedCount)
+                distances = new double[scanned.length];
+            for (int k = 0; k < scannedCount; k++) {
+                final int c = scanned[k];
+                final double d = query.minDistanceSquared(cellBounds(c % width, c / width, cellBounds));
+                int j = k; // insertion sort; there are few cells
+                for (; j > 0 && distances[j - 1] > d; j--) {
+                    distances[j] = distances[j - 1];
+                    scanned[j] = scanned[j - 1];
+                }
+                distances[j] = d;
+                scanned[j] = c;
+            }
+
+            Entry nearest = null;
+            double nearestDistance2 = Double.MAX_VALUE;
+            for (int k = 0; k < scannedCount && distances[k] < nearestDistance2; k++) {
+                final int c = scanned[k];
+                final StampedLock lock = stripes[stripe(c)];
+                final long stamp = lock.readLock();
+                try {
+                    final Entry[] entries = cells[c];
+                    for (int i = 0, n = cellSizes[c]; i < n; i++) {
+                        final Entry e = entries[i];
+                        if (!query.excludes(e.record) && query.queryElement(e.bounds, e.record)) {
+                            final double d2 = query.distanceSquared((e.bounds.min(X) + e.bounds.max(X)) * 0.5, (e.bounds.min(Y) + e.bounds.max(Y)) * 0.5);
+                            if (d2 < nearestDistance2) {
+                                nearest = e;
+                                nearestDistance2 = d2;
+                            }
+                        }
+                    }
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return nearest != null ? read(nearest) : this;
+        }
+
+        @Override
+        public Result update(SpatialToken token) {
+            final Entry e = (Entry) token;
+            for (;;) {
+                final int c = e.cell;
+                if (c < 0)
+                    return this; // deleted: there's nothing to update
+                final int s = stripe(c);
+                final long stamp = stripes[s].writeLock();
+                if (e.cell == c) {
+                    held[0] = s;
+                    stamps[0] = stamp;
+                    heldCount = 1;
+                    this.writeStripe = s;
+                    this.updated = e;
+                    return this;
+                }
+                stripes[s].unlockWrite(stamp); // moved (by the group committer); try again
+            }
+        }
+
+        @Override
+        public Collection<Record<SpaceshipState>> elements() {
+            return elements;
+        }
+
+        @Override
+        public Record<SpaceshipState> element() {
+            return element;
+        }
+
+        @Override
+        public void update(AABB bounds) {
+            final Entry e = updated;
+            if (e == null)
+                return; // the element had been deleted
+            copy(bounds, e.bounds);
+            final int newCell = cell(bounds);
+            if (newCell == e.cell)
+                return;
+            final int s = stripe(newCell);
+            if (s == writeStripe) {
+                remove(e);
+                add(newCell, e);
+                return;
+            }
+            final int k = Arrays.binarySearch(held, 0, heldCount, s);
+            if (k >= 0) {
+                final long stamp = stripes[s].tryConvertToWriteLock(stamps[k]);
+                if (stamp != 0) {
+                    stamps[k] = stamp;
+                    remove(e);
+                    add(newCell, e);
+                    return;
+                }
+            } else {
+                final long stamp = stripes[s].tryWriteLock();
+                if (stamp != 0) {
+                    try {
+                        remove(e);
+                        add(newCell, e);
+                    } finally {
+                        stripes[s].unlockWrite(stamp);
+                    }
+                    return;
+                }
+            }
+            this.pendingCell = newCell; // can't lock the new cell without risking a deadlock
+        }
+
+        @Override
+        public void close() {
+            unlockAll();
+            if (pendingCell >= 0) {
+                relocate(updated, pendingCell);
+                pendingCell = -1;
+            }
+            updated = null;
+            element = null;
+            elements.clear();
+        }
+
+        private void unlockAll() {
+            for (int i = heldCount - 1; i >= 0; i--)
+                stripes[held[i]].unlock(stamps[i]);
+            heldCount = 0;
+            writeStripe = -1;
+        }
+
+        /**
+         * Finds the cells the query needs to scan, and the stripes guarding them.
+         */
+        private void scan(SpatialQuery<? super Record<SpaceshipState>> query) {
+            scannedCount = 0;
+            heldCount = 0;
+            final AABB b = query instanceof BoundedSpatialQuery ? ((BoundedSpatialQuery<?>) query).getBounds() : null;
+            final int cx0 = b != null ? cellX(b.min(X)) : 0;
+            final int cx1 = b != null ? cellX(b.max(X)) : width - 1;
+            final int cy0 = b != null ? cellY(b.min(Y)) : 0;
+            final int cy1 = b != null ? cellY(b.max(Y)) : height - 1;
+            for (int cy = cy0; cy <= cy1; cy++) {
+                for (int cx = cx0; cx <= cx1; cx++) {
+                    if (query.queryContainer(cellBounds(cx, cy, cellBounds)) == QueryResult.NONE)
+                        continue;
+                    final int c = cy * width + cx;
+                    if (scannedCount == scanned.length)
+                        scanned = Arrays.copyOf(scanned, scannedCount * 2);
+                    scanned[scannedCount++] = c;
+                    hold(stripe(c));
+                }
+            }
+        }
+
+        private void hold(int s) {
+            if (heldCount == held.length) {
+                held = Arrays.copyOf(held, heldCount * 2);
+                stamps = Arrays.copyOf(stamps, heldCount * 2);
+            }
+            held[heldCount++] = s;
+        }
+
+        private void lockAll() {
+            Arrays.sort(held, 0, heldCount);
+            int n = 0;
+            for (int i = 0; i < heldCount; i++) {
+                if (n == 0 || held[i] != held[n - 1])
+                    held[n++] = held[i];
+            }
+            heldCount = n;
+            for (int i = 0; i < heldCount; i++) {
+                final StampedLock lock = stripes[held[i]];
+                stamps[i] = held[i] == writeStripe ? lock.writeLock() : lock.readLock();
+            }
+        }
+
+        private void collect(SpatialQuery<? super Record<SpaceshipState>> query) {
+            for (int k = 0; k < scannedCount; k++) {
+                final int c = scanned[k];
+                final Entry[] entries = cells[c];
+                for (int i = 0, n = cellSizes[c]; i < n; i++) {
+                    final Entry e = entries[i];
+                    if (query.queryElement(e.bounds, e.record))
+                        elements.add(e.record);
+                }
+            }
+        }
+    }
+
+    /**
+     * An element in the grid, which also serves as its token.
+     */
+    private static final class Entry implements SpatialToken {
+        final Record<SpaceshipState> record;
+        final MutableAABB bounds = AABB.create(2); // guarded by the stripe of cell
+        volatile int cell = -1; // -1 when not in the grid
+        int slot; // guarded by the stripe of cell
+
+        Entry(Record<SpaceshipState> record) {
+            this.record = record;
+        }
+
+        // A SpatialToken doubles as a future for SpaceBase's asynchronous operations, but the grid's are synchronous
+        @Override
+        public void join() {
+        }
+
+        @Override
+        public boolean join(long timeout, TimeUnit unit) {
+            return true;
+        }
+
+        @Override
+        public boolean isDone() {
+            return true;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public Void get() {
+            return null;
+        }
+
+        @Override
+        public Void get(long timeout, TimeUnit unit) {
+            return null;
+        }
+
+        @Override
+        public String toString() {
+            return "GridIndex.Entry(" + record.get($id) + ')';
+        }
+    }
+}
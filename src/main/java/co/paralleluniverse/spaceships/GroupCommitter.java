@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.fibers.TrueThreadLocal;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.MutableAABB;
+import co.paralleluniverse.spacebase.SpatialToken;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes ships' records and moves them in the spatial index in batches, instead of each ship doing so in its own update
+ * transaction on every tick. A ship only reads its neighbors, and stages its new state and bounds in its {@link Slot},
+ * which is queued on the shard of the worker thread it runs on. Each shard has its own committer thread, which applies
+ * the slots queued on it at a fixed interval, which bounds the added latency. Each slot is applied in an update
+ * transaction, so others never see a record partially written.
+ *
+ * A slot holds only the latest state staged, so a ship that is staged again before its slot is applied (possibly on
+ * another worker) is written just once, as it is now.
+ */
+class GroupCommitter {
+    private final Spaceships global;
+    private final long intervalMillis;
+    private final Shard[] shards;
+    private final AtomicInteger workers = new AtomicInteger();
+    private final ThreadLocal<Shard> shard = new TrueThreadLocal<Shard>() { // a plain ThreadLocal would be the fiber's
+        @Override
+        protected Shard initialValue() {
+            return nextShard();
+        }
+    };
+
+    /**
+     * @param shards the number of committers; there should be one for each worker thread running ships.
+     */
+    GroupCommitter(Spaceships global, int shards, long intervalMillis) {
+        this.global = global;
+        this.intervalMillis = intervalMillis;
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; i++)
+            this.shards[i] = new Shard();
+    }
+
+    void start() {
+        for (int i = 0; i < shards.length; i++) {
+            final Thread thread = new Thread(shards[i], "group-committer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Each worker thread (not each fiber running on it) gets a shard of its own, until there are more workers than
+     * shards, and they start sharing.
+     */
+    private Shard nextShard() {
+        return shards[workers.getAndIncrement() % shards.length];
+    }
+
+    /**
+     * Stages the slot's ship's new state, and its new bounds, if it must move. Must only be called by the ship's owner,
+     * and not in a transaction, as the committer holds the slot's lock while it updates the ship.
+     *
+     * @param state  the ship's state, as {@link Spaceship#flush(Record) flushed}
+     * @param bounds the ship's new bounds, or {@code null} if it needn't move
+     */
+    void stage(Slot slot, Record<SpaceshipState> state, AABB bounds) {
+        final boolean enqueue;
+        synchronized (slot) {
+            Spaceship.copyFlushed(state, slot.staged);
+            if (bounds != null) {
+                copy(bounds, slot.bounds);
+                slot.moved = true;
+            }
+            enqueue = !slot.queued;
+            slot.queued = true;
+        }
+        if (enqueue)
+            shard.get().add(slot);
+    }
+
+    /**
+     * Makes sure the slot's ship won't be written or moved again, so that it may write its record itself, or be
+     * deleted. Must only be called by the ship's owner, and not in a transaction.
+     */
+    void remove(Slot slot) {
+        synchronized (slot) {
+            slot.removed = true;
+        }
+    }
+
+    private static void copy(AABB from, MutableAABB to) {
+        to.min(X, from.min(X));
+        to.max(X, from.max(X));
+        to.min(Y, from.min(Y));
+        to.max(Y, from.max(Y));
+    }
+
+    /**
+     * A ship's staged state and bounds
+     */
+    static final class Slot {
+        final SpatialToken token;
+        private final Record<SpaceshipState> record; // the ship's record in the index, written only in transactions
+        private final Record<SpaceshipState> staged = SpaceshipState.stateType.newInstance(); // guarded by this
+        private final MutableAABB bounds = AABB.create(2); // guarded by this
+        private boolean moved; // guarded by this; whether bounds have been staged since the slot was last applied
+        private boolean queued; // guarded by this
+        private boolean removed; // guarded by this
+
+        /**
+         * @param record the ship's record as inserted in the index (not the wrapper the index hands the ship)
+         */
+        Slot(SpatialToken token, Record<SpaceshipState> record) {
+            this.token = token;
+            this.record = record;
+        }
+    }
+
+    /**
+     * The slots queued by a worker thread (or a few), and their committer
+     */
+    private final class Shard implements Runnable {
+        private Slot[] slots = new Slot[64]; // guarded by this
+        private int size; // guarded by this
+        // only accessed by the committer thread
+        private SpatialIndex.Session space;
+        private Slot[] batch = new Slot[64];
+
+        synchronized void add(Slot slot) {
+            if (size == slots.length)
+                slots = Arrays.copyOf(slots, size * 2);
+            slots[size++] = slot;
+        }
+
+        @Override
+        public void run() {
+            this.space = global.index.newSession();
+            for (;;) {
+                try {
+                    Thread.sleep(intervalMillis);
+                    commit();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Throwable t) { // the moves queued on this shard are only applied while this thread runs
+                    System.err.println("Exception in group committer");
+                    t.printStackTrace();
+                }
+            }
+        }
+
+        private void commit() throws InterruptedException {
+            final int n;
+            synchronized (this) {
+                n = size;
+                if (batch.length < n)
+                    batch = new Slot[slots.length];
+                // swap the queue with the (empty) batch, so that ships can keep staging while we commit
+                final Slot[] tmp = slots;
+                slots = batch;
+                size = 0;
+                batch = tmp;
+            }
+            long commits = 0;
+            for (int i = 0; i < n; i++) {
+                final Slot slot = batch[i];
+                batch[i] = null;
+                synchronized (slot) { // held while applying, so that the slot doesn't race with remove
+                    slot.queued = false;
+                    if (slot.removed)
+                        continue;
+                    try (SpatialIndex.Result up = space.update(slot.token)) {
+                        Spaceship.copyFlushed(slot.staged, slot.record);
+                        if (slot.moved)
+                            up.update(slot.bounds); // the bounds aren't touched again before the transaction completes
+                        slot.moved = false;
+                    } catch (SuspendExecution e) {
+                        throw new AssertionError(e);
+                    } catch (RuntimeException e) {
+                        System.err.println("Exception in group committer, updating " + slot.token);
+                        e.printStackTrace();
+                        continue;
+                    }
+                }
+                commits++;
+            }
+            if (commits > 0) {
+                global.groupCommits.inc();
+                global.groupCommitUpdates.add(commits);
+            }
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Drives a headless (ui-component = NONE) run: lets the simulation warm up, measures it for a fixed duration, and
+ * emits a machine-readable (JSON) report.
+ */
+class HeadlessBenchmark {
+    private final Spaceships global;
+    private final int N;
+    private final long warmupMillis;
+    private final long durationMillis;
+    private final String reportFile;
+    private final long maxAllocationPerTick;
+
+    HeadlessBenchmark(Spaceships global, int N, Properties props) {
+        this.global = global;
+        this.N = N;
+        this.warmupMillis = (long) (Double.parseDouble(props.getProperty("benchmark-warmup", "5")) * 1000);
+        this.durationMillis = (long) (Double.parseDouble(props.getProperty("benchmark-duration", "30")) * 1000);
+        this.reportFile = props.getProperty("benchmark-report");
+        this.maxAllocationPerTick = Long.parseLong(props.getProperty("benchmark-max-alloc-per-tick", "-1"));
+    }
+
+    /**
+     * @return {@code false} if the allocation budget (if set) has been exceeded; {@code true} otherwise.
+     */
+    boolean run() throws InterruptedException, FileNotFoundException {
+        System.out.println("Benchmark: warming up for " + warmupMillis + " millis");
+        Thread.sleep(warmupMillis);
+
+        // start measuring
+        global.spaceshipsCycles.getAndReset();
+        global.spaceshipsQueries.getAndReset();
+        global.neighborListHits.getAndReset();
+        global.neighborListRebuilds.getAndReset();
+        global.snapshotReads.getAndReset();
+        global.snapshotFallbacks.getAndReset();
+        global.deadReckoningCommits.getAndReset();
+        global.boundsUpdatesSkipped.getAndReset();
+        global.checkedQueries.getAndReset();
+        global.falsePositives.getAndReset();
+        global.pairwisePasses.getAndReset();
+        global.pairwisePairs.getAndReset();
+        global.regionMoves.getAndReset();
+        global.hibernations.getAndReset();
+        global.rehydrations.getAndReset();
+        global.startsDeferred.getAndReset();
+        global.groupCommits.getAndReset();
+        global.groupCommitUpdates.getAndReset();
+        global.impulses.getAndReset();
+        global.impulsesCoalesced.getAndReset();
+        global.shotsDropped.getAndReset();
+        global.tickRetries.getAndReset();
+        global.ticksDropped.getAndReset();
+        global.tickInterval = new Histogram(new UniformReservoir());
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            pool.resetPeakUsage();
+        final long gcTime0 = gcTime();
+        final long gcCount0 = gcCount();
+        final long indexRetries0 = indexRetries();
+        final AllocationCounter allocation = new AllocationCounter();
+
+        long cycles = 0;
+        final long start = System.nanoTime();
+        final long end = start + durationMillis * 1000000;
+        for (int k = 0;; k++) {
+            final long now = System.nanoTime();
+            if (now >= end)
+                break;
+            Thread.sleep(Math.min(1000, (end - now) / 1000000 + 1));
+            final long c = global.spaceshipsCycles.getAndReset();
+            cycles += c;
+            System.out.println(k + "\tTICKS: " + c);
+        }
+        final double seconds = (System.nanoTime() - start) * 1e-9;
+
+        final long queries = global.spaceshipsQueries.getAndReset();
+        final long neighborListHits = global.neighborListHits.getAndReset();
+        final long neighborListRebuilds = global.neighborListRebuilds.getAndReset();
+        final long snapshotReads = global.snapshotReads.getAndReset();
+        final long snapshotFallbacks = global.snapshotFallbacks.getAndReset();
+        final long deadReckoningCommits = global.deadReckoningCommits.getAndReset();
+        final long boundsUpdatesSkipped = global.boundsUpdatesSkipped.getAndReset();
+        final long checkedQueries = global.checkedQueries.getAndReset();
+        final long falsePositives = global.falsePositives.getAndReset();
+        final long pairwisePasses = global.pairwisePasses.getAndReset();
+        final long pairwisePairs = global.pairwisePairs.getAndReset();
+        final long regionMoves = global.regionMoves.getAndReset();
+        final long hibernations = global.hibernations.getAndReset();
+        final long rehydrations = global.rehydrations.getAndReset();
+        final long startsDeferred = global.startsDeferred.getAndReset();
+        final int dormant = global.hibernator != null ? global.hibernator.dormant() : 0;
+        final long groupCommits = global.groupCommits.getAndReset();
+        final long groupCommitUpdates = global.groupCommitUpdates.getAndReset();
+        final long impulses = global.impulses.getAndReset();
+        final long coalesced = global.impulsesCoalesced.getAndReset();
+        final long shotsDropped = global.shotsDropped.getAndReset();
+        final long tickRetries = global.tickRetries.getAndReset();
+        final long ticksDropped = global.ticksDropped.getAndReset();
+        final long gcTime = gcTime() - gcTime0;
+        final long gcCount = gcCount() - gcCount0;
+        final long indexRetries = indexRetries() - indexRetries0;
+        final long heapPeak = heapPeak();
+        final long allocated = allocation.stop();
+        final long allocationPerTick = cycles > 0 ? allocated / cycles : 0;
+        final Snapshot intervals = global.tickInterval.getSnapshot();
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        field(sb, "N", N);
+        field(sb, "durationSeconds", seconds);
+        field(sb, "preloadMillis", global.preloadNanos / 1e6);
+        field(sb, "timeToFirstTickMillis", global.firstTickNanos / 1e6);
+        field(sb, "timeToAllTickedMillis", global.allTickedNanos / 1e6);
+        field(sb, "ticks", cycles);
+        field(sb, "ticksPerSecond", cycles / seconds);
+        field(sb, "framesPerSecond", cycles / seconds / N);
+        field(sb, "tickIntervalMillisMin", intervals.getMin());
+        field(sb, "tickIntervalMillisMean", intervals.getMean());
+        field(sb, "tickIntervalMillisP50", intervals.getMedian());
+        field(sb, "tickIntervalMillisP90", intervals.getValue(0.90));
+        field(sb, "tickIntervalMillisP99", intervals.getValue(0.99));
+        field(sb, "tickIntervalMillisP999", intervals.get999thPercentile());
+        field(sb, "tickIntervalMillisMax", intervals.getMax());
+        field(sb, "queries", queries);
+        field(sb, "queriesPerSecond", queries / seconds);
+        field(sb, "neighborListHits", neighborListHits);
+        field(sb, "neighborListRebuilds", neighborListRebuilds);
+        field(sb, "neighborListHitRatio", neighborListHits + neighborListRebuilds > 0 ? (double) neighborListHits / (neighborListHits + neighborListRebuilds) : 0.0);
+        field(sb, "snapshotReads", snapshotReads);
+        field(sb, "snapshotFallbacks", snapshotFallbacks);
+        field(sb, "indexUpdatesPerSecond", (global.committer != null ? groupCommitUpdates : global.deadReckoning() ? deadReckoningCommits : cycles - boundsUpdatesSkipped) / seconds);
+        field(sb, "deadReckoningCommits", deadReckoningCommits);
+        field(sb, "deadReckoningCommitRatio", global.deadReckoning() && cycles > 0 ? (double) deadReckoningCommits / cycles : 1.0);
+        field(sb, "boundsUpdatesSkipped", boundsUpdatesSkipped);
+        field(sb, "falsePositivesPerQuery", checkedQueries > 0 ? (double) falsePositives / checkedQueries : 0.0);
+        field(sb, "pairwisePasses", pairwisePasses);
+        field(sb, "pairwisePairsPerPass", pairwisePasses > 0 ? (double) pairwisePairs / pairwisePasses : 0.0);
+        field(sb, "regionMovesPerSecond", regionMoves / seconds);
+        field(sb, "hydratedShips", N - dormant);
+        field(sb, "dormantShips", dormant);
+        field(sb, "hibernations", hibernations);
+        field(sb, "rehydrations", rehydrations);
+        field(sb, "startsDeferred", startsDeferred);
+        field(sb, "groupCommits", groupCommits);
+        field(sb, "groupCommitMeanBatch", groupCommits > 0 ? (double) groupCommitUpdates / groupCommits : 0.0);
+        field(sb, "indexRetries", indexRetries);
+        field(sb, "indexRetriesPerSecond", indexRetries / seconds);
+        field(sb, "impulses", impulses);
+        field(sb, "impulsesCoalesced", coalesced);
+        field(sb, "shotsDropped", shotsDropped);
+        field(sb, "tickRetries", tickRetries);
+        field(sb, "ticksDropped", ticksDropped);
+        field(sb, "gcCount", gcCount);
+        field(sb, "gcTimeMillis", gcTime);
+        field(sb, "allocatedBytes", allocated);
+        field(sb, "allocatedBytesPerTick", allocationPerTick);
+        sb.append("  \"heapPeakBytes\": ").append(heapPeak).append("\n");
+        sb.append("}");
+
+        final String report = sb.toString();
+        System.out.println(report);
+        if (reportFile != null) {
+            try (PrintStream out = new PrintStream(new FileOutputStream(new File(reportFile)))) {
+                out.println(report);
+            }
+        }
+
+        if (maxAllocationPerTick >= 0 && allocationPerTick > maxAllocationPerTick) {
+            System.err.println("Allocation per tick (" + allocationPerTick + " bytes) exceeds the budget of " + maxAllocationPerTick + " bytes");
+            return false;
+        }
+        return true;
+    }
+
+    private static void field(StringBuilder sb, String name, Object value) {
+        sb.append("  \"").append(name).append("\": ").append(value).append(",\n");
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    /**
+     * The optimistic-locking retries counted so far by the index, as the sum of all counters with "retr" in their name
+     * exposed by Parallel Universe MBeans. The grid index locks pessimistically and exposes none, so it's always 0.
+     */
+    private static long indexRetries() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        long retries = 0;
+        try {
+            for (ObjectName name : server.queryNames(new ObjectName("co.paralleluniverse*:*"), null)) {
+                for (MBeanAttributeInfo attribute : server.getMBeanInfo(name).getAttributes()) {
+                    if (!attribute.isReadable() || !attribute.getName().toLowerCase().contains("retr"))
+                        continue;
+                    final Object value = server.getAttribute(name, attribute.getName());
+                    if (value instanceof Number)
+                        retries += ((Number) value).longValue();
+                }
+            }
+        } catch (JMException e) {
+            System.err.println("Could not read the index's retry counters: " + e);
+        }
+        return retries;
+    }
+
+    /**
+     * The sum of the peak usage of all heap pools since measurement began. This is an upper bound on the actual
+     * heap high-water mark, as the pools don't necessarily peak at the same time.
+     */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null)
+                peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Counts the bytes allocated on the heap by all threads, including those that end while it's counting, as the
+     * growth in heap usage plus the bytes freed by every collection in between. Threads' own allocation counters can't
+     * be used, as those of threads that have ended can't be read.
+     */
+    private static final class AllocationCounter implements NotificationListener {
+        private final Set<String> heapPools = new HashSet<>();
+        private final AtomicLong freed = new AtomicLong();
+        private final AtomicLong collections = new AtomicLong(); // whose notifications have been received
+        private final long gcCount0;
+        private final long used0;
+
+        AllocationCounter() {
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP)
+                    heapPools.add(pool.getName());
+            }
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter)
+                    ((NotificationEmitter) gc).addNotificationListener(this, null, null);
+            }
+            this.gcCount0 = gcCount();
+            this.used0 = heapUsed();
+        }
+
+        @Override
+        public void handleNotification(Notification notification, Object handback) {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+                return;
+            final GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+            freed.addAndGet(used(info.getMemoryUsageBeforeGc()) - used(info.getMemoryUsageAfterGc()));
+            collections.incrementAndGet();
+        }
+
+        private long used(Map<String, MemoryUsage> pools) {
+            long used = 0;
+            for (Map.Entry<String, MemoryUsage> pool : pools.entrySet()) {
+                if (heapPools.contains(pool.getKey()))
+                    used += pool.getValue().getUsed();
+            }
+            return used;
+        }
+
+        /**
+         * Stops counting.
+         *
+         * @return the bytes allocated since this counter was created
+         */
+        long stop() throws InterruptedException {
+            final long gcs = gcCount() - gcCount0;
+            final long used = heapUsed();
+            // notifications are sent asynchronously, so wait (a little) for those of the collections that have been done
+            for (int i = 0; i < 100 && collections.get() < gcs; i++)
+                Thread.sleep(10);
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (gc instanceof NotificationEmitter) {
+                    try {
+                        ((NotificationEmitter) gc).removeNotificationListener(this);
+                    } catch (ListenerNotFoundException e) {
+                    }
+                }
+            }
+            if (collections.get() < gcs)
+                System.err.println("Benchmark: " + (gcs - collections.get()) + " collections weren't reported; allocatedBytes is too low");
+            return used - used0 + freed.get();
+        }
+
+        private static long heapUsed() {
+            return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        }
+    }
+}
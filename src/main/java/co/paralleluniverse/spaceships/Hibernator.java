@@ -0,0 +1,286 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.MutableAABB;
+import co.paralleluniverse.spacebase.SpatialToken;
+import co.paralleluniverse.spacebase.SpatialVisitor;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps idle ships dormant. A ship that has been cruising with no neighbors, no target, and no pending impulses for a
+ * while ends its actor, and leaves behind a {@link Dormant} entry: its state record (which stays in the spatial index)
+ * and the time it will next want to fight. A single thread moves the dormant ships in a straight line at a coarse
+ * step, and wakes a ship, by having its shard supervisor start a new actor around its record (see {@link Shards}),
+ * when a ship comes near it, an explosion goes off near it, it's been shot, or it's time for it to fight.
+ *
+ * The hibernator moves each dormant ship in an update transaction of its own, like the ship would, so that others
+ * never see its record partially written.
+ */
+class Hibernator implements Runnable {
+    static final long STEP_MILLIS = 100;
+    static final double MAX_EXTERNAL_SPEED = 1; // a ship pushed faster than this isn't idle
+    //
+    private final Spaceships global;
+    final long idleMillis; // how long a ship must be idle before it hibernates
+    private final int shardSize;
+    private final ConcurrentLinkedQueue<Dormant> arriving = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Integer> restartedShards = new ConcurrentLinkedQueue<>();
+    private volatile int dormantCount;
+    // only accessed by the hibernator thread
+    private SpatialIndex.Session space;
+    private Dormant[] dormant = new Dormant[1024];
+    private int size;
+    private final MutableAABB bounds = AABB.create(2);
+    private final BlastField.Cursor blasts = new BlastField.Cursor();
+
+    Hibernator(Spaceships global, long idleMillis, int shardSize) {
+        this.global = global;
+        this.idleMillis = idleMillis;
+        this.shardSize = shardSize;
+    }
+
+    void start() {
+        final Thread thread = new Thread(this, "hibernator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Called when a shard supervisor is restarted. It starts all its ships anew, so the dormant ones are dropped.
+     */
+    void shardRestarted(int firstShip) {
+        restartedShards.add(firstShip / shardSize);
+    }
+
+    /**
+     * Takes over a ship whose actor is ending. Its record must no longer be moved by anyone else.
+     */
+    void hibernate(Dormant ship) {
+        global.hibernations.inc();
+        arriving.add(ship);
+    }
+
+    /**
+     * The number of dormant ships, as of the last step
+     */
+    int dormant() {
+        return dormantCount;
+    }
+
+    @Override
+    public void run() {
+        this.space = global.index.newSession();
+        for (;;) {
+            try {
+                Thread.sleep(STEP_MILLIS);
+                step(global.now());
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) { // dormant ships only move, and wake, while this thread runs
+                System.err.println("Exception in hibernator");
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private void step(long now) throws InterruptedException {
+        for (Integer shard; (shard = restartedShards.poll()) != null;) {
+            for (int i = 0; i < size;) {
+                if (dormant[i].id / shardSize == shard) {
+                    global.index.delete(dormant[i].state.get($token));
+                    dormant[i].state.get($snapshot).gone();
+                    remove(i);
+                } else
+                    i++;
+            }
+        }
+        for (Dormant d; (d = arriving.poll()) != null;) {
+            if (size == dormant.length)
+                dormant = Arrays.copyOf(dormant, size * 2);
+            dormant[size++] = d;
+        }
+
+        // all neighbor queries are issued before waiting for any of them, so that the index can run them concurrently
+        for (int i = 0; i < size; i++) {
+            final Dormant d = dormant[i];
+            try {
+                d.wakeNow = checkWake(d, now);
+            } catch (RuntimeException e) {
+                System.err.println("Exception in hibernator, checking dormant ship " + d.id);
+                e.printStackTrace();
+            }
+        }
+        global.index.joinAllPendingOperations();
+
+        for (int i = 0; i < size;) {
+            final Dormant d = dormant[i];
+            try {
+                if ((d.wakeNow || d.neighbors.found) && wake(d)) {
+                    remove(i);
+                    continue;
+                }
+                coast(d, now);
+            } catch (RuntimeException e) {
+                System.err.println("Exception in hibernator, moving dormant ship " + d.id);
+                e.printStackTrace();
+            }
+            i++;
+        }
+        this.dormantCount = size;
+    }
+
+    /**
+     * Whether the ship must wake for anything but a neighbor. If not, queries for its neighbors, and the ship must
+     * also wake if any are {@link NeighborFinder#found found} once the index's pending operations have been joined.
+     */
+    private boolean checkWake(Dormant d, long now) {
+        final Record<SpaceshipState> s = d.state;
+        d.neighbors.reset(d.id);
+        if (s.get($impulses).isPending())
+            return true;
+        if (now >= d.wake) {
+            d.fight = true;
+            return true;
+        }
+        final double x = Spaceship.currentX(s, now);
+        final double y = Spaceship.currentY(s, now);
+        blasts.since(s.get($lastMoved));
+        global.blasts.collect(blasts, x, y, now);
+        if (blasts.count > 0)
+            return true;
+        // wake if a ship is close enough to come into range before the next step, even if both fly right at each other
+        final double margin = 2 * Spaceship.SPEED_LIMIT * STEP_MILLIS / TimeUnit.SECONDS.toMillis(1);
+        global.index.query(d.neighbors.query.reset(x, y, global.range + global.indexSlack + margin), d.neighbors);
+        return false;
+    }
+
+    /**
+     * Moves a dormant ship in a straight line (it has no neighbors to accelerate away from), bouncing off the edges of
+     * the world like a live one.
+     */
+    private void coast(Dormant d, long now) throws InterruptedException {
+        final Record<SpaceshipState> s = d.state; // only written by us, so we may read it outside of a transaction
+        final AABB world = global.bounds;
+        final double duration = Spaceship.seconds(now - s.get($lastMoved));
+        double x = Spaceship.displace(s.get($x), s.get($vx), 0, 0, duration);
+        double y = Spaceship.displace(s.get($y), s.get($vy), 0, 0, duration);
+        double vx = s.get($vx);
+        double vy = s.get($vy);
+        if (Spaceship.outOfBounds(x, world.min(X), world.max(X))) {
+            x = Spaceship.confine(x, world.min(X), world.max(X));
+            vx = Spaceship.bounce(vx);
+        }
+        if (Spaceship.outOfBounds(y, world.min(Y), world.max(Y))) {
+            y = Spaceship.confine(y, world.min(Y), world.max(Y));
+            vy = Spaceship.bounce(vy);
+        }
+        final double margin = global.fatMargin;
+        bounds.min(X, x - margin);
+        bounds.max(X, x + margin);
+        bounds.min(Y, y - margin);
+        bounds.max(Y, y + margin);
+
+        try (SpatialIndex.Result up = space.update(s.get($token))) {
+            s.set($x, x);
+            s.set($y, y);
+            s.set($vx, vx);
+            s.set($vy, vy);
+            s.set($lastMoved, now);
+            s.get($snapshot).publish(s);
+            up.update(bounds);
+        } catch (SuspendExecution e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * @return {@code false} if the ship's shard couldn't be asked to start it, in which case it stays dormant, and
+     *         keeps coasting, until the next step
+     */
+    private boolean wake(Dormant d) {
+        if (!global.shards.start(new Spaceship(global, d))) {
+            global.startsDeferred.inc();
+            return false;
+        }
+        global.rehydrations.inc();
+        return true;
+    }
+
+    private void remove(int i) {
+        dormant[i] = dormant[--size];
+        dormant[size] = null;
+    }
+
+    /**
+     * A dormant ship
+     */
+    static final class Dormant {
+        final int id;
+        final Record<SpaceshipState> state; // the ship's record in the index
+        final long wake; // when the ship will want to fight
+        final int timesHit;
+        final long timeHit;
+        boolean fight; // woken to fight
+        // only accessed by the hibernator
+        private boolean wakeNow; // must wake in this step
+        private final NeighborFinder neighbors = new NeighborFinder(); // this step's neighbor query
+
+        Dormant(int id, Record<SpaceshipState> state, long wake, int timesHit, long timeHit) {
+            this.id = id;
+            this.state = state;
+            this.wake = wake;
+            this.timesHit = timesHit;
+            this.timeHit = timeHit;
+        }
+    }
+
+    /**
+     * A dormant ship's neighbor query, which may still be running when the next ship's is issued
+     */
+    private static final class NeighborFinder implements SpatialVisitor<Record<SpaceshipState>> {
+        final PointRangeQuery query = new PointRangeQuery();
+        private int me;
+        boolean found;
+
+        void reset(int me) {
+            this.me = me;
+            this.found = false;
+        }
+
+        @Override
+        public void visit(Record<SpaceshipState> s, SpatialToken token) {
+            if (s.get($id) != me) // the index may hold a wrapper of my record
+                found = true;
+        }
+
+        @Override
+        public void done() {
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.actors.ActorRef;
+import co.paralleluniverse.common.monitoring.Counter;
+import co.paralleluniverse.fibers.SuspendExecution;
+
+/**
+ * Collects the impulses (shots) other ships apply to a ship. Pending impulses are merged into a single
+ * velocity change and hit count, and the ship is sent a single {@link #WAKE} message until it takes them, so
+ * any number of impulses takes a bounded amount of room in the ship's actor mailbox, and sending one never allocates.
+ */
+final class ImpulseMailbox {
+    /**
+     * Tells the owner it has impulses to take
+     */
+    static final Spaceship.SpaceshipMessage WAKE = new Spaceship.SpaceshipMessage();
+    //
+    private final Counter impulses;
+    private final Counter coalesced;
+    // guarded by this
+    private ActorRef<Spaceship.SpaceshipMessage> owner;
+    private double dvx;
+    private double dvy;
+    private int hits;
+    private boolean pending;
+    // set by take(); only accessed by the owner
+    double takenDvx;
+    double takenDvy;
+    int takenHits;
+
+    ImpulseMailbox(ActorRef<Spaceship.SpaceshipMessage> owner, Counter impulses, Counter coalesced) {
+        this.owner = owner;
+        this.impulses = impulses;
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * Adds an impulse, and wakes the owner unless it already has impulses pending.
+     *
+     * @param dvx  the change to the owner's external velocity
+     * @param dvy  the change to the owner's external velocity
+     * @param hits the number of hits
+     */
+    void push(double dvx, double dvy, int hits) throws SuspendExecution {
+        final ActorRef<Spaceship.SpaceshipMessage> wake;
+        synchronized (this) {
+            this.dvx += dvx;
+            this.dvy += dvy;
+            this.hits += hits;
+            wake = !pending ? owner : null;
+            this.pending = true;
+        }
+        impulses.inc();
+        if (wake != null)
+            wake.send(WAKE);
+        else
+            coalesced.inc();
+    }
+
+    /**
+     * Whether there are impulses the owner hasn't taken yet
+     */
+    synchronized boolean isPending() {
+        return pending;
+    }
+
+    /**
+     * Hands the mailbox over to the actor of a woken {@link Hibernator.Dormant dormant} ship, and wakes it if it has
+     * impulses pending (its previous actor has ended, so it may have missed the wake-up).
+     */
+    void reown(ActorRef<Spaceship.SpaceshipMessage> owner) throws SuspendExecution {
+        final boolean wake;
+        synchronized (this) {
+            this.owner = owner;
+            wake = pending;
+        }
+        if (wake)
+            owner.send(WAKE);
+    }
+
+    /**
+     * Moves all pending impulses into the {@code taken} fields. Must only be called by the owner.
+     */
+    synchronized void take() {
+        this.takenDvx = dvx;
+        this.takenDvy = dvy;
+        this.takenHits = hits;
+        this.dvx = 0;
+        this.dvy = 0;
+        this.hits = 0;
+        this.pending = false;
+    }
+}
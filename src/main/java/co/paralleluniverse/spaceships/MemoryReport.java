@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.common.monitoring.Counter;
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.spacebase.AABB;
+import java.io.InputStreamReader;
+import java.util.Properties;
+import java.util.function.IntFunction;
+
+/**
+ * Measures the heap taken by each ship, broken down by component, by creating N instances of each component (without
+ * running anything) and comparing heap usage after a full GC before and after. The world is configured by
+ * spaceships.properties, like the simulation's; the number of ships may be given as an argument.
+ *
+ * Usage: {@code ./runMain.sh co.paralleluniverse.spaceships.MemoryReport [N]}
+ */
+public class MemoryReport {
+    private static Object[] retained; // keeps the measured objects reachable
+
+    public static void main(String[] args) throws Exception {
+        final Properties props = new Properties();
+        props.load(new InputStreamReader(ClassLoader.getSystemResourceAsStream("spaceships.properties")));
+        props.setProperty("ui-component", "NONE");
+        if (args.length > 0)
+            props.setProperty("N", args[0]);
+        final int N = Integer.parseInt(props.getProperty("N", "10000"));
+        final Spaceships global = new Spaceships(-1, props);
+
+        final long record = measure(N, i -> SpaceshipState.stateType.newInstance());
+        final long compactRecord = measure(N, i -> new CompactShipRecord());
+        final long snapshot = measure(N, i -> new ShipSnapshot());
+        // a new ship creates its state record and snapshot, which have rows of their own
+        final long ship = measure(N, i -> new Spaceship(global, i, null)) - (global.compactState ? compactRecord : record) - snapshot;
+        final Counter counter = new Counter(); // shared by all mailboxes, like the global counters
+        final long impulses = measure(N, i -> new ImpulseMailbox(null, counter, counter));
+        final long fiber = measure(N, i -> new Fiber<Void>(() -> {
+        }));
+        final long indexEntry = measureIndex(global, N);
+        final long dormant = measure(N, i -> new Hibernator.Dormant(i, null, 0, 0, 0));
+
+        System.out.println();
+        System.out.println("Bytes per ship (N = " + N + ")");
+        row("state record, default layout", record);
+        row("state record, compact layout", compactRecord);
+        row("actor, with its mailbox and private state", ship);
+        row("impulse mailbox", impulses);
+        row("published snapshot", snapshot);
+        row("fiber, with its initial stack", fiber);
+        row("index entry, with transactional wrappers", indexEntry);
+        final long rest = ship + impulses + snapshot + fiber + indexEntry;
+        row("total, default layout", rest + record);
+        row("total, compact layout", rest + compactRecord);
+        System.out.println("Ships per GB: " + (1L << 30) / (rest + record) + " (default layout), " + (1L << 30) / (rest + compactRecord) + " (compact layout)");
+        // a dormant ship keeps its record, mailbox, snapshot and index entry, but not its actor and fiber
+        final long dormantTotal = dormant + impulses + snapshot + indexEntry;
+        row("dormant ship entry", dormant);
+        row("total, dormant ship, default layout", dormantTotal + record);
+        row("total, dormant ship, compact layout", dormantTotal + compactRecord);
+        System.exit(0);
+    }
+
+    private static long measure(int n, IntFunction<Object> create) throws InterruptedException {
+        retained = new Object[n];
+        final long before = usedHeap();
+        for (int i = 0; i < n; i++)
+            retained[i] = create.apply(i);
+        final long after = usedHeap();
+        retained = null;
+        return Math.round((double) (after - before) / n);
+    }
+
+    /**
+     * Measures the index entries and the wrappers the index's session puts around the ship's state record.
+     */
+    @SuppressWarnings("unchecked")
+    private static long measureIndex(Spaceships global, int n) throws Exception {
+        final Record<SpaceshipState>[] states = new Record[n];
+        final AABB[] bounds = new AABB[n];
+        for (int i = 0; i < n; i++) {
+            states[i] = SpaceshipState.stateType.newInstance();
+            final double x = global.random.randRange(global.bounds.min(AABB.X), global.bounds.max(AABB.X));
+            final double y = global.random.randRange(global.bounds.min(AABB.Y), global.bounds.max(AABB.Y));
+            bounds[i] = AABB.create(x, x, y, y);
+        }
+        final Object owner = new Object();
+        retained = new Object[n];
+        final long before = usedHeap();
+        final Fiber<Void> fiber = new Fiber<Void>(() -> {
+            final SpatialIndex.Session session = global.index.newSession();
+            for (int i = 0; i < n; i++)
+                retained[i] = session.insert(owner, states[i], bounds[i]);
+        }).start();
+        fiber.join();
+        global.index.joinAllPendingOperations();
+        final long after = usedHeap();
+        retained = null;
+        return Math.round((double) (after - before) / n);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void row(String component, long bytes) {
+        System.out.println(String.format("  %-45s %8d", component, bytes));
+    }
+}
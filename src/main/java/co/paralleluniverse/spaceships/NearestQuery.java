@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.db.tree.QueryResult;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.BoundedSpatialQuery;
+import co.paralleluniverse.spacebase.MutableAABB;
+import static co.paralleluniverse.spaceships.SpaceshipState.$id;
+
+/**
+ * Describes a search for the element nearest to a point, among those inside a given area and farther than a minimum
+ * distance from the point. Executed by {@link SpatialIndex.Session#nearest(NearestQuery) Session.nearest}.
+ *
+ * As a spatial query it matches all candidates within the current {@link #limit(double) limit}, so an index that
+ * can't traverse its elements in order of distance can search in growing circles.
+ * An instance must not be reset while a search using it is in progress.
+ */
+class NearestQuery implements BoundedSpatialQuery<Object> {
+    private double x, y;
+    private double minDistanceSquared;
+    private double limitSquared;
+    private int excluded;
+    private BoundedSpatialQuery<Object> area;
+    private final MutableAABB bounds = AABB.create(2);
+
+    /**
+     * @param x           the point
+     * @param y           the point
+     * @param minDistance elements this close to the point (or closer) are ignored
+     * @param area        only elements matching this query are considered
+     */
+    public NearestQuery reset(double x, double y, double minDistance, BoundedSpatialQuery<Object> area) {
+        this.x = x;
+        this.y = y;
+        this.minDistanceSquared = minDistance * minDistance;
+        this.area = area;
+        this.excluded = -1;
+        return limit(Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Ignores the ship with the given id. A ship's fat bounds may be centered away from it, so a ship searching around
+     * itself must exclude itself by id.
+     */
+    NearestQuery excluding(int id) {
+        this.excluded = id;
+        return this;
+    }
+
+    /**
+     * Whether the given element is to be ignored, whatever its bounds (must be called where it may be read).
+     */
+    boolean excludes(Record<SpaceshipState> s) {
+        return excluded >= 0 && s.get($id) == excluded;
+    }
+
+    /**
+     * Restricts the query to the elements within the given distance from the point.
+     */
+    NearestQuery limit(double radius) {
+        this.limitSquared = radius * radius;
+        final AABB b = area.getBounds();
+        bounds.min(X, Math.max(b.min(X), x - radius));
+        bounds.max(X, Math.min(b.max(X), x + radius));
+        bounds.min(Y, Math.max(b.min(Y), y - radius));
+        bounds.max(Y, Math.min(b.max(Y), y + radius));
+        return this;
+    }
+
+    /**
+     * The smallest distance from the point to the area's bounds
+     */
+    double minRadius() {
+        return Math.sqrt(minDistanceSquared(area.getBounds()));
+    }
+
+    /**
+     * The largest distance from the point to a candidate
+     */
+    double maxRadius() {
+        return Math.sqrt(maxDistanceSquared(area.getBounds()));
+    }
+
+    double distanceSquared(double px, double py) {
+        final double dx = px - x;
+        final double dy = py - y;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * The distance from the point to the nearest point in the given box
+     */
+    double minDistanceSquared(AABB aabb) {
+        final double dx = distance(x, aabb.min(X), aabb.max(X));
+        final double dy = distance(y, aabb.min(Y), aabb.max(Y));
+        return dx * dx + dy * dy;
+    }
+
+    private double maxDistanceSquared(AABB aabb) {
+        final double dx = Math.max(Math.abs(x - aabb.min(X)), Math.abs(x - aabb.max(X)));
+        final double dy = Math.max(Math.abs(y - aabb.min(Y)), Math.abs(y - aabb.max(Y)));
+        return dx * dx + dy * dy;
+    }
+
+    private static double distance(double p, double min, double max) {
+        if (p < min)
+            return min - p;
+        if (p > max)
+            return p - max;
+        return 0;
+    }
+
+    @Override
+    public AABB getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public QueryResult queryContainer(AABB aabb) {
+        final double min = minDistanceSquared(aabb);
+        final double max = maxDistanceSquared(aabb);
+        if (min > limitSquared | max <= minDistanceSquared)
+            return QueryResult.NONE;
+        final QueryResult r = area.queryContainer(aabb);
+        if (r == QueryResult.ALL && (min <= minDistanceSquared | max > limitSquared))
+            return QueryResult.SOME;
+        return r;
+    }
+
+    @Override
+    public boolean queryElement(AABB aabb, Object elem) {
+        final double d2 = distanceSquared((aabb.min(X) + aabb.max(X)) * 0.5, (aabb.min(Y) + aabb.max(Y)) * 0.5);
+        return d2 > minDistanceSquared & d2 <= limitSquared && area.queryElement(aabb, elem);
+    }
+
+    @Override
+    public String toString() {
+        return "NearestQuery(" + x + ", " + y + ", min: " + Math.sqrt(minDistanceSquared) + ", limit: " + Math.sqrt(limitSquared) + ", " + area + ')';
+    }
+}
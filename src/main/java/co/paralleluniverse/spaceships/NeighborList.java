@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Verlet neighbor list: the ships within {@code range + skin} of a ship, so that it need not query the spatial
+ * index for its neighbors on every tick. The list is rebuilt once the ship, or any other ship (listed or not), may
+ * have moved more than half the skin since the last rebuild, so no ship can cross the skin unnoticed. As ships outside
+ * the list aren't known, they are assumed to fly at the speed limit.
+ *
+ * Records may only be read inside a transaction, so the list keeps a snapshot of each neighbor's position and
+ * velocity, and extrapolates its current position from them. With dead reckoning, the snapshot is taken from each
+ * neighbor's published trajectory at the time of the rebuild.
+ */
+final class NeighborList {
+    private final double skin;
+    private final boolean deadReckoning;
+    private double[] x = new double[16];
+    private double[] y = new double[16];
+    private double[] vx = new double[16]; // including the external velocity
+    private double[] vy = new double[16];
+    private int size;
+    // the owner's position and the time at the last rebuild
+    private double x0;
+    private double y0;
+    private long time0 = -1;
+    private double maxSpeed;
+
+    NeighborList(double skin, boolean deadReckoning) {
+        this.skin = skin;
+        this.deadReckoning = deadReckoning;
+    }
+
+    /**
+     * The radius the owner must query its neighbors in for a given interaction range
+     */
+    double radius(double range) {
+        return range + skin;
+    }
+
+    /**
+     * Whether the list must be rebuilt before the owner, now at the given position, can use it.
+     */
+    boolean isStale(double x, double y, long now) {
+        if (time0 < 0)
+            return true;
+        final double halfSkin = skin / 2;
+        final double speed = Math.max(Spaceship.SPEED_LIMIT, maxSpeed); // listed ships may be pushed faster than the limit
+        return Spaceship.mag(x - x0, y - y0) > halfSkin
+                || speed * Spaceship.seconds(now - time0) > halfSkin;
+    }
+
+    /**
+     * Replaces the list with the given ships, except the owner. Must be called in the transaction that found them.
+     *
+     * @param me  the owner's id
+     * @param myX the owner's position
+     * @param myY the owner's position
+     */
+    void rebuild(Collection<Record<SpaceshipState>> ships, int me, double myX, double myY, long now) {
+        if (ships.size() > x.length) {
+            final int n = Integer.highestOneBit(ships.size()) << 1;
+            x = Arrays.copyOf(x, n);
+            y = Arrays.copyOf(y, n);
+            vx = Arrays.copyOf(vx, n);
+            vy = Arrays.copyOf(vy, n);
+        }
+        size = 0;
+        maxSpeed = 0;
+        for (Record<SpaceshipState> s : ships) {
+            if (s.get($id) == me) // the index may hold a wrapper of my record
+                continue;
+            x[size] = deadReckoning ? Spaceship.currentX(s, now) : s.get($x);
+            y[size] = deadReckoning ? Spaceship.currentY(s, now) : s.get($y);
+            vx[size] = s.get($vx) + s.get($exVx);
+            vy[size] = s.get($vy) + s.get($exVy);
+            maxSpeed = Math.max(maxSpeed, Spaceship.mag(vx[size], vy[size]));
+            size++;
+        }
+        x0 = myX;
+        y0 = myY;
+        time0 = now;
+    }
+
+    int size() {
+        return size;
+    }
+
+    double x(int i, long now) {
+        return x[i] + vx[i] * (now - time0) / TimeUnit.SECONDS.toMillis(1);
+    }
+
+    double y(int i, long now) {
+        return y[i] + vy[i] * (now - time0) / TimeUnit.SECONDS.toMillis(1);
+    }
+}
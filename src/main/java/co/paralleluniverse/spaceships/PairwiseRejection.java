@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Computes the ships' rejection from their neighbors in one pass over the whole world, instead of having each ship
+ * query its own neighbors every tick. Each pass reads all ships' published {@link ShipSnapshot snapshots}, hashes them
+ * into a grid of cells as wide as the interaction range, and joins each cell with itself and with half of its
+ * neighboring cells, so that each pair of ships is visited once, and gets equal and opposite accelerations.
+ *
+ * Passes take turns writing into a few {@link Accelerations} buffers, and publish each one, once complete, as the
+ * last pass. A pass holds its buffer's write lock, so a ship that is still reading the buffer from a few passes back
+ * (see {@link Accelerations#tryRead()}) fails to validate its read and goes to the last pass instead.
+ */
+class PairwiseRejection implements Runnable {
+    private final Spaceships global;
+    private final AtomicReferenceArray<ShipSnapshot> ships; // by ship id
+    private final long periodMillis;
+    private final double range;
+    private final double minX, minY;
+    private final int width, height;
+    private final Accelerations[] buffers = new Accelerations[3];
+    private int written; // the buffer of the last pass; only accessed by the pass
+    private volatile Accelerations last; // the last complete pass
+    // only accessed by the pass
+    private final ShipSnapshot read = new ShipSnapshot();
+    private final double[] x, y, sortedX, sortedY;
+    private final int[] id, sortedId, cellOf;
+    private final int[] cellStart;
+
+    PairwiseRejection(Spaceships global, int N, AABB bounds, double range, long periodMillis) {
+        this.global = global;
+        this.ships = new AtomicReferenceArray<>(N);
+        this.periodMillis = periodMillis;
+        this.range = range;
+        this.minX = bounds.min(X);
+        this.minY = bounds.min(Y);
+        this.width = (int) Math.ceil((bounds.max(X) - minX) / range) + 1;
+        this.height = (int) Math.ceil((bounds.max(Y) - minY) / range) + 1;
+        for (int i = 0; i < buffers.length; i++)
+            buffers[i] = new Accelerations(N);
+        this.last = buffers[written];
+        this.x = new double[N];
+        this.y = new double[N];
+        this.id = new int[N];
+        this.cellOf = new int[N];
+        this.sortedX = new double[N];
+        this.sortedY = new double[N];
+        this.sortedId = new int[N];
+        this.cellStart = new int[width * height + 1];
+    }
+
+    void start() {
+        final Thread thread = new Thread(this, "pairwise-rejection");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds a ship to the passes. The ship is dropped once its snapshot tells it's gone.
+     */
+    void register(int ship, ShipSnapshot snapshot) {
+        ships.set(ship, snapshot);
+    }
+
+    /**
+     * The ships' accelerations away from their neighbors, as of the last pass
+     */
+    Accelerations last() {
+        return last;
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            try {
+                final long start = System.nanoTime();
+                pass();
+                final long elapsed = (System.nanoTime() - start) / 1000000;
+                if (elapsed < periodMillis)
+                    Thread.sleep(periodMillis - elapsed);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) { // a failed pass is simply done again
+                System.err.println("Exception in pairwise rejection");
+                t.printStackTrace();
+                try {
+                    Thread.sleep(periodMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void pass() {
+        // read the ships' positions, and count the ships in each cell
+        Arrays.fill(cellStart, 0);
+        int n = 0;
+        for (int i = 0; i < ships.length(); i++) {
+            final ShipSnapshot s = ships.get(i);
+            if (s == null || !readInto(s) || read.gone)
+                continue;
+            x[n] = read.x;
+            y[n] = read.y;
+            id[n] = i;
+            cellOf[n] = cell(cellX(read.x), cellY(read.y));
+            cellStart[cellOf[n] + 1]++;
+            n++;
+        }
+        // sort them by cell
+        for (int c = 0; c < width * height; c++)
+            cellStart[c + 1] += cellStart[c];
+        for (int i = 0; i < n; i++) {
+            final int k = cellStart[cellOf[i]]++;
+            sortedX[k] = x[i];
+            sortedY[k] = y[i];
+            sortedId[k] = id[i];
+        }
+        for (int c = width * height; c > 0; c--) // restore the starts we've advanced while sorting
+            cellStart[c] = cellStart[c - 1];
+        cellStart[0] = 0;
+
+        final int k = (written + 1) % buffers.length; // never the last pass's buffer, even if the pass before has failed
+        final Accelerations next = buffers[k];
+        final double[] bax = next.ax;
+        final double[] bay = next.ay;
+        final long stamp = next.lock.writeLock();
+        long pairs = 0;
+        try {
+            Arrays.fill(bax, 0);
+            Arrays.fill(bay, 0);
+            for (int cy = 0; cy < height; cy++) {
+                for (int cx = 0; cx < width; cx++) {
+                    final int c = cell(cx, cy);
+                    for (int i = cellStart[c]; i < cellStart[c + 1]; i++) {
+                        pairs += join(i, i + 1, cellStart[c + 1], bax, bay);
+                        // the neighboring cells not joined with this one yet
+                        if (cx + 1 < width)
+                            pairs += join(i, cell(cx + 1, cy), bax, bay);
+                        if (cy + 1 < height) {
+                            if (cx > 0)
+                                pairs += join(i, cell(cx - 1, cy + 1), bax, bay);
+                            pairs += join(i, cell(cx, cy + 1), bax, bay);
+                            if (cx + 1 < width)
+                                pairs += join(i, cell(cx + 1, cy + 1), bax, bay);
+                        }
+                    }
+                }
+            }
+        } finally {
+            next.lock.unlockWrite(stamp);
+        }
+        this.written = k;
+        this.last = next;
+
+        global.pairwisePasses.inc();
+        global.pairwisePairs.add(pairs);
+    }
+
+    private boolean readInto(ShipSnapshot s) {
+        for (int k = 0; k < 3; k++) {
+            if (s.readInto(read))
+                return true;
+        }
+        return false; // skip the ship in this pass
+    }
+
+    private int join(int i, int c, double[] bax, double[] bay) {
+        return join(i, cellStart[c], cellStart[c + 1], bax, bay);
+    }
+
+    /**
+     * Applies the rejection between ship {@code i} and ships {@code from} to {@code to} (exclusive) to both.
+     *
+     * @return the number of interacting pairs
+     */
+    private int join(int i, int from, int to, double[] bax, double[] bay) {
+        final double range2 = range * range;
+        final int me = sortedId[i];
+        int pairs = 0;
+        for (int j = from; j < to; j++) {
+            final double dx = sortedX[j] - sortedX[i];
+            final double dy = sortedY[j] - sortedY[i];
+            if (Spaceship.mag2(dx, dy) > range2)
+                continue;
+            final double rejection = Spaceship.rejectionPerDistance(dx, dy);
+            final double rx = rejection * dx;
+            final double ry = rejection * dy;
+            final int other = sortedId[j];
+            bax[me] -= rx;
+            bay[me] -= ry;
+            bax[other] += rx;
+            bay[other] += ry;
+            pairs++;
+        }
+        return pairs;
+    }
+
+    private int cellX(double x) {
+        return Math.min(width - 1, Math.max(0, (int) ((x - minX) / range)));
+    }
+
+    private int cellY(double y) {
+        return Math.min(height - 1, Math.max(0, (int) ((y - minY) / range)));
+    }
+
+    private int cell(int cx, int cy) {
+        return cy * width + cx;
+    }
+
+    /**
+     * The accelerations computed by a pass, by ship id. Reused by a later pass, so reads must be validated.
+     */
+    static final class Accelerations {
+        private final StampedLock lock = new StampedLock();
+        final double[] ax;
+        final double[] ay;
+
+        Accelerations(int n) {
+            this.ax = new double[n];
+            this.ay = new double[n];
+        }
+
+        /**
+         * Starts reading the accelerations; {@code validate} the returned stamp once they've been read.
+         */
+        long tryRead() {
+            return lock.tryOptimisticRead();
+        }
+
+        /**
+         * @return {@code false} if a later pass has been writing the buffer while we read, and the values read must be discarded.
+         */
+        boolean validate(long stamp) {
+            return lock.validate(stamp);
+        }
+    }
+}
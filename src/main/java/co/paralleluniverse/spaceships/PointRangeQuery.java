@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.db.tree.QueryResult;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.BoundedSpatialQuery;
+import co.paralleluniverse.spacebase.MutableAABB;
+
+/**
+ * A reusable version of {@link co.paralleluniverse.spacebase.SpatialQueries#range(AABB, double) SpatialQueries.range}
+ * for a 2D point, so that a spaceship need not allocate a new query on every tick.
+ * An instance must not be reset while a query using it is in progress.
+ */
+class PointRangeQuery implements BoundedSpatialQuery<Object> {
+    private double x, y;
+    private double rangeSquared;
+    private final MutableAABB bounds = AABB.create(2);
+
+    public PointRangeQuery reset(double x, double y, double range) {
+        this.x = x;
+        this.y = y;
+        this.rangeSquared = range * range;
+        bounds.min(X, x - range);
+        bounds.max(X, x + range);
+        bounds.min(Y, y - range);
+        bounds.max(Y, y + range);
+        return this;
+    }
+
+    @Override
+    public AABB getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public QueryResult queryContainer(AABB aabb) {
+        if (minDistanceSquared(aabb) > rangeSquared)
+            return QueryResult.NONE;
+        if (maxDistanceSquared(aabb) <= rangeSquared)
+            return QueryResult.ALL;
+        return QueryResult.SOME;
+    }
+
+    @Override
+    public boolean queryElement(AABB aabb, Object elem) {
+        return minDistanceSquared(aabb) <= rangeSquared;
+    }
+
+    private double minDistanceSquared(AABB aabb) {
+        final double dx = distance(x, aabb.min(X), aabb.max(X));
+        final double dy = distance(y, aabb.min(Y), aabb.max(Y));
+        return dx * dx + dy * dy;
+    }
+
+    private double maxDistanceSquared(AABB aabb) {
+        final double dx = Math.max(Math.abs(x - aabb.min(X)), Math.abs(x - aabb.max(X)));
+        final double dy = Math.max(Math.abs(y - aabb.min(Y)), Math.abs(y - aabb.max(Y)));
+        return dx * dx + dy * dy;
+    }
+
+    private static double distance(double p, double min, double max) {
+        if (p < min)
+            return min - p;
+        if (p > max)
+            return p - max;
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PointRangeQuery(" + x + ", " + y + ", " + Math.sqrt(rangeSquared) + ')';
+    }
+}
@@ -21,50 +21,136 @@ package co.paralleluniverse.spaceships;
 
 import co.paralleluniverse.db.tree.QueryResult;
 import co.paralleluniverse.spacebase.AABB;
-import co.paralleluniverse.spacebase.SpatialQuery;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.BoundedSpatialQuery;
+import co.paralleluniverse.spacebase.MutableAABB;
 
 /**
+ * Finds the elements in a circular sector: within a given range of a point, and within a given angle of a heading.
+ *
+ * The sector's two straight edges are kept as half-planes through its apex, so testing an element takes two dot
+ * products and a squared distance, with no trigonometry (the sector is the intersection of the half-planes if it's
+ * no wider than a half-circle, and their union otherwise). Containers are pruned against the sector itself, and
+ * {@link #getBounds() the bounds} enclose the arc.
+ *
+ * The deviation and range are fixed; the apex and heading are {@link #reset(double, double, double, double) reset}
+ * for every query, so an instance can be reused.
  *
  * @author eitan
  */
-public class RadarQuery implements SpatialQuery<Object> {
-    private final double x, y;
-    private final double dev;
+public class RadarQuery implements BoundedSpatialQuery<Object> {
     private final double range;
-    private AABB aabb;
-    private final double heading;
+    private final double rangeSquared;
+    private final double cosDev;
+    private final double sinDev;
+    private final boolean wide; // wider than a half-circle
+    private double x, y;
+    private double hx, hy; // unit heading
+    private double n1x, n1y, n2x, n2y; // inward normals of the sector's edges
+    private final MutableAABB bounds = AABB.create(2);
+
+    /**
+     * @param dev   the largest angle (in radians) between the heading and a direction in the sector
+     * @param range the sector's radius
+     */
+    public RadarQuery(double dev, double range) {
+        this.range = range;
+        this.rangeSquared = range * range;
+        this.cosDev = Math.cos(dev);
+        this.sinDev = Math.sin(dev);
+        this.wide = dev > Math.PI / 2;
+    }
 
-    public RadarQuery(double x, double y, double vx, double vy, double dev, double range) {
+    /**
+     * Re-targets this query, so that it may be reused. Must not be called while a query using this instance is in progress.
+     *
+     * @param x  the apex
+     * @param y  the apex
+     * @param vx the heading (need not be normalized; the zero vector is taken to point along the x axis)
+     * @param vy the heading
+     */
+    public RadarQuery reset(double x, double y, double vx, double vy) {
         this.x = x;
         this.y = y;
-        this.dev = dev;
-        this.range = range;
-        this.heading = Math.atan2(vy, vx);
-        double minAng = heading - dev;
-        double maxAng = heading + dev;
-        double x1, x2, y1, y2;
-        x1 = x + range * Math.cos(minAng);
-        x2 = x + range * Math.cos(maxAng);
-        y1 = y + range * Math.sin(minAng);
-        y2 = y + range * Math.sin(maxAng);
-        aabb = AABB.create(
-                Math.min(x, Math.min(x1, x2)),
-                Math.max(x, Math.max(x1, x2)),
-                Math.min(y, Math.min(y1, y2)),
-                Math.max(y, Math.max(y1, y2)));
+        final double v = Math.sqrt(vx * vx + vy * vy);
+        if (v > 0) {
+            this.hx = vx / v;
+            this.hy = vy / v;
+        } else {
+            this.hx = 1;
+            this.hy = 0;
+        }
+        // the edges are the heading rotated by -dev and +dev; their inward normals are rotated a further +90 and -90 degrees
+        this.n1x = hx * sinDev - hy * cosDev;
+        this.n1y = hx * cosDev + hy * sinDev;
+        this.n2x = hx * sinDev + hy * cosDev;
+        this.n2y = -hx * cosDev + hy * sinDev;
+
+        // the bounds enclose the apex, the ends of the arc, and the arc's extreme points along each axis
+        final double e1x = hx * cosDev + hy * sinDev;
+        final double e1y = -hx * sinDev + hy * cosDev;
+        final double e2x = hx * cosDev - hy * sinDev;
+        final double e2y = hx * sinDev + hy * cosDev;
+        bounds.min(X, hx <= -cosDev ? x - range : x + range * Math.min(0, Math.min(e1x, e2x)));
+        bounds.max(X, hx >= cosDev ? x + range : x + range * Math.max(0, Math.max(e1x, e2x)));
+        bounds.min(Y, hy <= -cosDev ? y - range : y + range * Math.min(0, Math.min(e1y, e2y)));
+        bounds.max(Y, hy >= cosDev ? y + range : y + range * Math.max(0, Math.max(e1y, e2y)));
+        return this;
+    }
 
+    @Override
+    public AABB getBounds() {
+        return bounds;
     }
 
     @Override
     public QueryResult queryContainer(AABB aabb) {
-        if (this.aabb.contains(aabb) || this.aabb.intersects(aabb))
-            return QueryResult.SOME;
-        return QueryResult.NONE;
+        final double minX = aabb.min(X) - x;
+        final double maxX = aabb.max(X) - x;
+        final double minY = aabb.min(Y) - y;
+        final double maxY = aabb.max(Y) - y;
+
+        final double dx = minX > 0 ? minX : (maxX < 0 ? -maxX : 0);
+        final double dy = minY > 0 ? minY : (maxY < 0 ? -maxY : 0);
+        if (dx * dx + dy * dy > rangeSquared)
+            return QueryResult.NONE;
+
+        // how many of the corners are in each half-plane
+        final int in1 = inside(n1x, n1y, minX, maxX, minY, maxY);
+        final int in2 = inside(n2x, n2y, minX, maxX, minY, maxY);
+        if (in1 == 0 & in2 == 0)
+            return QueryResult.NONE;
+        if (!wide & (in1 == 0 | in2 == 0))
+            return QueryResult.NONE;
+
+        final double fx = Math.max(-minX, maxX);
+        final double fy = Math.max(-minY, maxY);
+        if (fx * fx + fy * fy <= rangeSquared && (wide ? (in1 == 4 | in2 == 4) : (in1 == 4 & in2 == 4)))
+            return QueryResult.ALL;
+        return QueryResult.SOME;
     }
 
     @Override
     public boolean queryElement(AABB aabb, Object elem) {
-        double ang = Math.atan2(aabb.max(1) - y, aabb.max(0) - x);
-        return Math.abs(ang - heading) < dev;
+        final double px = (aabb.min(X) + aabb.max(X)) * 0.5 - x;
+        final double py = (aabb.min(Y) + aabb.max(Y)) * 0.5 - y;
+        if (px * px + py * py > rangeSquared)
+            return false;
+        final boolean in1 = px * n1x + py * n1y >= 0;
+        final boolean in2 = px * n2x + py * n2y >= 0;
+        return wide ? (in1 | in2) : (in1 & in2);
+    }
+
+    private static int inside(double nx, double ny, double minX, double maxX, double minY, double maxY) {
+        return (minX * nx + minY * ny >= 0 ? 1 : 0)
+                + (maxX * nx + minY * ny >= 0 ? 1 : 0)
+                + (minX * nx + maxY * ny >= 0 ? 1 : 0)
+                + (maxX * nx + maxY * ny >= 0 ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "RadarQuery(" + x + ", " + y + ", heading: (" + hx + ", " + hy + "), cos(dev): " + cosDev + ", range: " + range + ')';
     }
 }
@@ -22,27 +22,47 @@ package co.paralleluniverse.spaceships;
 import co.paralleluniverse.spacebase.AABB;
 import co.paralleluniverse.spacebase.MutableAABB;
 import static java.lang.Math.*;
-import java.util.Random;
-import java.util.concurrent.ThreadLocalRandom;
 
 /**
+ * A fast, non-thread-safe pseudo-random generator (SplitMix64) with some spatial utilities.
+ * An instance must only be used by a single strand; independent streams for other strands are obtained with
+ * {@link #split(long) split}, so no locking is ever required, and a given seed always reproduces the same streams.
  *
  * @author pron
  */
 public class RandSpatial {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+    private long seed;
+    private long state;
+    private double nextNextGaussian;
+    private boolean haveNextNextGaussian;
+
+    public RandSpatial(long seed) {
+        setSeed(seed);
+    }
+
+    public RandSpatial() {
+        this(mix64(System.nanoTime()) ^ mix64(System.currentTimeMillis()));
+    }
+
+    public long getSeed() {
+        return seed;
+    }
 
-//    private final Random random;
-//
-//    public RandSpatial(long seed) {
-//        random = new Random(seed);
-//    }
-//
-//    public RandSpatial() {
-//        random = ThreadLocalRandom.current();
-//    }
+    /**
+     * Returns an independent stream, which is a function of this instance's seed and the given id only
+     * (and not of this instance's current state). This method may be called concurrently.
+     */
+    public RandSpatial split(long id) {
+        return split(id, 0);
+    }
 
-    public Random getRandom() {
-        return ThreadLocalRandom.current();
+    /**
+     * Returns an independent stream for the given generation of the given id, so that an id that is reused (say, by a
+     * restarted strand) doesn't replay the stream of its previous use. Generation 0 is the stream of {@link #split(long)}.
+     */
+    public RandSpatial split(long id, long generation) {
+        return new RandSpatial(mix64(seed + mix64(id + 1) + generation * GOLDEN_GAMMA));
     }
 
     private MutableAABB floatify(MutableAABB aabb) {
@@ -68,7 +88,7 @@ public class RandSpatial {
     public AABB randomAABB(AABB bounds, double expSize, double variance) {
         MutableAABB aabb = AABB.create(bounds.dims());
         for (int i = 0; i < bounds.dims(); i++) {
-            double tmp = getRandom().nextGaussian();
+            double tmp = nextGaussian();
             double size = (tmp*tmp) * variance + expSize;
             if(expSize > 0 && size == 0)
                 size = 0.01;
@@ -85,43 +105,76 @@ public class RandSpatial {
     }
 
     public double randRange(double min, double max) {
-        double r = getRandom().nextDouble();
+        double r = nextDouble();
         return (float)(r * (max - min) + min);
     }
 
-    public synchronized void setSeed(long seed) {
-        getRandom().setSeed(seed);
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.state = seed;
+        this.haveNextNextGaussian = false;
     }
 
     public long nextLong() {
-        return getRandom().nextLong();
+        return mix64(state += GOLDEN_GAMMA);
     }
 
     public int nextInt(int n) {
-        return getRandom().nextInt(n);
+        if (n <= 0)
+            throw new IllegalArgumentException("n must be positive");
+        int r = nextInt();
+        final int m = n - 1;
+        if ((n & m) == 0) // power of two
+            return r & m;
+        for (int u = r >>> 1; u + m - (r = u % n) < 0; u = nextInt() >>> 1)
+            ;
+        return r;
     }
 
     public int nextInt() {
-        return getRandom().nextInt();
+        return (int) (nextLong() >>> 32);
     }
 
-    public synchronized double nextGaussian() {
-        return getRandom().nextGaussian();
+    public double nextGaussian() {
+        if (haveNextNextGaussian) {
+            haveNextNextGaussian = false;
+            return nextNextGaussian;
+        }
+        double v1, v2, s;
+        do {
+            v1 = 2 * nextDouble() - 1;
+            v2 = 2 * nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        final double multiplier = StrictMath.sqrt(-2 * StrictMath.log(s) / s);
+        nextNextGaussian = v2 * multiplier;
+        haveNextNextGaussian = true;
+        return v1 * multiplier;
     }
 
     public float nextFloat() {
-        return getRandom().nextFloat();
+        return (nextInt() >>> 8) * 0x1.0p-24f;
     }
 
     public double nextDouble() {
-        return getRandom().nextDouble();
+        return (nextLong() >>> 11) * 0x1.0p-53;
     }
 
     public void nextBytes(byte[] bytes) {
-        getRandom().nextBytes(bytes);
+        int i = 0;
+        while (i < bytes.length) {
+            for (long r = nextLong(), n = Math.min(bytes.length - i, 8); n-- > 0; r >>= 8)
+                bytes[i++] = (byte) r;
+        }
     }
 
     public boolean nextBoolean() {
-        return getRandom().nextBoolean();
+        return nextInt() < 0;
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
     }
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.db.tree.QueryResult;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.BoundedSpatialQuery;
+import co.paralleluniverse.spacebase.MutableAABB;
+
+/**
+ * Finds the elements a beam passes close to: those within a given radius of a segment starting at a point and
+ * extending in a given direction, and in front of the point. Elements are tested by projecting them on the beam, with
+ * two dot products. To find the first element hit, use it as the area of a {@link NearestQuery}, one
+ * {@link #section(double, double) section} of the beam at a time, nearest first, so the search ends at the first
+ * section that holds an element.
+ * An instance must not be reset while a query using it is in progress.
+ */
+class RayCastQuery implements BoundedSpatialQuery<Object> {
+    private double x0, y0; // the start of the beam
+    private double x, y; // the start of the section
+    private double ux, uy; // unit direction
+    private double length;
+    private double radius;
+    private double radiusSquared;
+    private final MutableAABB bounds = AABB.create(2);
+
+    /**
+     * Re-targets this query, so that it may be reused.
+     *
+     * @param x      the start of the beam
+     * @param y      the start of the beam
+     * @param vx     the direction of the beam (need not be normalized; the zero vector is taken to point along the x axis)
+     * @param vy     the direction of the beam
+     * @param length the length of the beam
+     * @param radius how close to the beam an element must be to be hit
+     */
+    public RayCastQuery reset(double x, double y, double vx, double vy, double length, double radius) {
+        this.x0 = x;
+        this.y0 = y;
+        final double v = Math.sqrt(vx * vx + vy * vy);
+        if (v > 0) {
+            this.ux = vx / v;
+            this.uy = vy / v;
+        } else {
+            this.ux = 1;
+            this.uy = 0;
+        }
+        this.radius = radius;
+        this.radiusSquared = radius * radius;
+        return section(0, length);
+    }
+
+    /**
+     * Restricts this query to the part of the beam between the given distances from its start (the part's start is
+     * excluded, its end included).
+     */
+    public RayCastQuery section(double from, double to) {
+        this.x = x0 + ux * from;
+        this.y = y0 + uy * from;
+        this.length = to - from;
+        final double x1 = x + ux * length;
+        final double y1 = y + uy * length;
+        bounds.min(X, Math.min(x, x1) - radius);
+        bounds.max(X, Math.max(x, x1) + radius);
+        bounds.min(Y, Math.min(y, y1) - radius);
+        bounds.max(Y, Math.max(y, y1) + radius);
+        return this;
+    }
+
+    @Override
+    public AABB getBounds() {
+        return bounds;
+    }
+
+    @Override
+    public QueryResult queryContainer(AABB aabb) {
+        if (!bounds.intersects(aabb))
+            return QueryResult.NONE;
+        // the box is separated from the rectangle around the beam along the beam's direction or its normal
+        final double minX = aabb.min(X) - x;
+        final double maxX = aabb.max(X) - x;
+        final double minY = aabb.min(Y) - y;
+        final double maxY = aabb.max(Y) - y;
+        final double t0 = Math.min(minX * ux, maxX * ux) + Math.min(minY * uy, maxY * uy);
+        final double t1 = Math.max(minX * ux, maxX * ux) + Math.max(minY * uy, maxY * uy);
+        if (t1 <= 0 | t0 > length)
+            return QueryResult.NONE;
+        final double n0 = Math.min(-minX * uy, -maxX * uy) + Math.min(minY * ux, maxY * ux);
+        final double n1 = Math.max(-minX * uy, -maxX * uy) + Math.max(minY * ux, maxY * ux);
+        if (n0 > radius | n1 < -radius)
+            return QueryResult.NONE;
+        return QueryResult.SOME;
+    }
+
+    @Override
+    public boolean queryElement(AABB aabb, Object elem) {
+        final double px = (aabb.min(X) + aabb.max(X)) * 0.5 - x;
+        final double py = (aabb.min(Y) + aabb.max(Y)) * 0.5 - y;
+        final double t = px * ux + py * uy;
+        if (t <= 0 | t > length)
+            return false;
+        final double n = px * uy - py * ux;
+        return n * n <= radiusSquared;
+    }
+
+    @Override
+    public String toString() {
+        return "RayCastQuery(" + x + ", " + y + ", direction: (" + ux + ", " + uy + "), length: " + length + ", radius: " + radius + ')';
+    }
+}
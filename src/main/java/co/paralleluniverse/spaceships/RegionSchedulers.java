@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.fibers.FiberForkJoinScheduler;
+import co.paralleluniverse.fibers.FiberScheduler;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+
+/**
+ * Divides the world into a grid of regions, each with its own fiber scheduler and worker threads, so that neighboring
+ * ships, which read the same index nodes and records, tend to run on the same cores. A ship runs on the scheduler of
+ * the region it's in, and is moved to another's once it's farther than a hysteresis margin past its region's edge, so
+ * that ships flying along an edge don't move back and forth.
+ */
+class RegionSchedulers {
+    private final double minX;
+    private final double minY;
+    private final double width; // of a region
+    private final double height;
+    private final int columns;
+    private final int rows;
+    private final double hysteresis;
+    private final FiberScheduler[] schedulers;
+
+    /**
+     * @param parallelism the number of worker threads, divided among the regions
+     */
+    RegionSchedulers(AABB bounds, int columns, int rows, int parallelism, double hysteresis) {
+        this.minX = bounds.min(X);
+        this.minY = bounds.min(Y);
+        this.width = (bounds.max(X) - minX) / columns;
+        this.height = (bounds.max(Y) - minY) / rows;
+        this.columns = columns;
+        this.rows = rows;
+        this.hysteresis = hysteresis;
+        this.schedulers = new FiberScheduler[columns * rows];
+        for (int i = 0; i < schedulers.length; i++)
+            schedulers[i] = new FiberForkJoinScheduler("region-" + i, Math.max(1, parallelism / schedulers.length));
+    }
+
+    int size() {
+        return schedulers.length;
+    }
+
+    int region(double x, double y) {
+        final int column = Math.min(columns - 1, Math.max(0, (int) ((x - minX) / width)));
+        final int row = Math.min(rows - 1, Math.max(0, (int) ((y - minY) / height)));
+        return row * columns + column;
+    }
+
+    FiberScheduler scheduler(int region) {
+        return schedulers[region];
+    }
+
+    /**
+     * Whether a ship running on the given region's scheduler should move to another.
+     */
+    boolean mustLeave(int region, double x, double y) {
+        final double x0 = minX + (region % columns) * width;
+        final double y0 = minY + (region / columns) * height;
+        return x < x0 - hysteresis | x > x0 + width + hysteresis | y < y0 - hysteresis | y > y0 + height + hysteresis;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.actors.Actor;
+import co.paralleluniverse.actors.ActorBuilder;
+import co.paralleluniverse.actors.behaviors.Supervisor;
+import co.paralleluniverse.actors.behaviors.SupervisorActor;
+import co.paralleluniverse.fibers.Fiber;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.strands.Strand;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Supervises a contiguous range of ships, as one shard of a two-level supervision tree, so that no single supervisor
+ * holds all ships, and restarting ships in one shard doesn't hold up the others.
+ *
+ * The children's specs aren't kept anywhere but in the supervisor itself: they are made from the ship ids when the
+ * shard starts (or restarts), and aren't named.
+ *
+ * When ships may be started by {@link Shards}, ending a ship's actor doesn't mean it's gone, so ships aren't restarted
+ * when they end normally. Instead, the shard starts a ship when it's sent an {@link AddShip} message. With
+ * {@link RegionSchedulers}, the shard runs each ship on the scheduler of the region it's in.
+ */
+class ShardSupervisor extends SupervisorActor {
+    private final Spaceships global;
+    private final int from;
+    private final int to;
+    private final IntFunction<ActorBuilder<Spaceship.SpaceshipMessage, Void>> ships;
+
+    /**
+     * @param global the simulation
+     * @param from   the first ship id in the shard
+     * @param to     one past the last ship id in the shard
+     * @param ships  creates the builder for the ship with a given id
+     */
+    ShardSupervisor(Spaceships global, int from, int to, IntFunction<ActorBuilder<Spaceship.SpaceshipMessage, Void>> ships) {
+        super(RestartStrategy.ONE_FOR_ONE);
+        this.global = global;
+        this.from = from;
+        this.to = to;
+        this.ships = ships;
+    }
+
+    @Override
+    protected void init() throws InterruptedException, SuspendExecution {
+        for (int i = from; i < to; i++)
+            startShip(ships.apply(i));
+        if (global.shards != null && global.shards.started(from, ref()) && global.hibernator != null)
+            global.hibernator.shardRestarted(from);
+    }
+
+    @Override
+    protected void handleMessage(Object m) throws InterruptedException, SuspendExecution {
+        if (m instanceof AddShip)
+            startShip(((AddShip) m).ship);
+        else
+            super.handleMessage(m);
+    }
+
+    private void startShip(ActorBuilder<Spaceship.SpaceshipMessage, Void> builder) throws InterruptedException, SuspendExecution {
+        final Supervisor.ChildMode mode = global.shards != null ? Supervisor.ChildMode.TRANSIENT : Supervisor.ChildMode.PERMANENT;
+        addChild(new Supervisor.ChildSpec(null, mode, 5, 1, TimeUnit.SECONDS, 3, builder));
+    }
+
+    /**
+     * With {@link RegionSchedulers}, runs each ship the spec's builder makes - when it's started, and whenever it's
+     * restarted - on the scheduler of the region it's in, rather than on ours.
+     */
+    @Override
+    protected Strand createStrandForActor(Strand oldStrand, Actor actor) {
+        if (global.regions == null)
+            return super.createStrandForActor(oldStrand, actor);
+        final Spaceship ship = (Spaceship) actor;
+        return new Fiber<>(global.regions.scheduler(ship.region()), ship); // sets the ship's strand
+    }
+
+    /**
+     * Asks the shard to start a ship
+     */
+    static final class AddShip {
+        final ActorBuilder<Spaceship.SpaceshipMessage, Void> ship;
+
+        AddShip(ActorBuilder<Spaceship.SpaceshipMessage, Void> ship) {
+            this.ship = ship;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ShardSupervisor(" + from + ".." + to + ')';
+    }
+}
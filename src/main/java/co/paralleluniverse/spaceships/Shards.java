@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.actors.Actor;
+import co.paralleluniverse.actors.ActorBuilder;
+import co.paralleluniverse.actors.ActorRef;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The shard supervisors, for starting ships other than by a shard's own starts and restarts: when a dormant ship is
+ * woken, when a ship moves to another region's scheduler, or in place of a ship that is gone. When ships can be
+ * started that way, their actors may end without the ship being gone, so shards don't restart ships that end normally.
+ */
+class Shards {
+    private final Spaceships global;
+    private final int shardSize;
+    private final AtomicReferenceArray<ActorRef<Object>> shards;
+
+    Shards(Spaceships global, int N, int shardSize) {
+        this.global = global;
+        this.shardSize = shardSize;
+        this.shards = new AtomicReferenceArray<>((N + shardSize - 1) / shardSize);
+    }
+
+    /**
+     * Called by a shard supervisor when it starts.
+     *
+     * @return {@code true} if the shard has been restarted
+     */
+    boolean started(int firstShip, ActorRef<Object> shard) {
+        return shards.getAndSet(firstShip / shardSize, shard) != null;
+    }
+
+    /**
+     * Has the ship's shard start the given ship (or a new one with the same id, if it's restarted).
+     *
+     * @return {@code false} if the shard couldn't be asked to, as it hasn't started yet, or its mailbox is full; the
+     *         caller still owns the ship's record, and may try again later
+     */
+    boolean start(Spaceship ship) {
+        final int id = ship.id();
+        return start(id, new ActorBuilder<Spaceship.SpaceshipMessage, Void>() {
+            private Spaceship first = ship; // only accessed by the supervisor
+
+            @Override
+            public Actor<Spaceship.SpaceshipMessage, Void> build() {
+                final Spaceship s = first;
+                first = null;
+                return s != null ? s : new Spaceship(global, id, global.phaser(id));
+            }
+        });
+    }
+
+    /**
+     * Has the ship's shard start a new ship with the given id, in place of one that is gone.
+     *
+     * @return {@code false} if the shard couldn't be asked to
+     */
+    boolean respawn(int id) {
+        return start(id, () -> new Spaceship(global, id, global.phaser(id)));
+    }
+
+    private boolean start(int id, ActorBuilder<Spaceship.SpaceshipMessage, Void> ship) {
+        final ActorRef<Object> shard = shards.get(id / shardSize);
+        return shard != null && shard.trySend(new ShardSupervisor.AddShip(ship));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A copy of a ship's position and velocity that other ships can read without a transaction. The owner publishes it
+ * under a {@link StampedLock} write lock every time it moves, and readers use an optimistic read, which works like a
+ * seqlock: a read that overlaps a write fails, and the reader should then fall back to reading the ship's record in a
+ * transaction.
+ *
+ * An instance that isn't published is used by a reader to hold the values it has read.
+ */
+final class ShipSnapshot {
+    private final StampedLock lock = new StampedLock();
+    double x;
+    double y;
+    double vx;
+    double vy;
+    boolean gone;
+
+    /**
+     * Publishes the state of the owner's ship. Must only be called by the owner.
+     */
+    void publish(Record<SpaceshipState> s) {
+        final long stamp = lock.writeLock();
+        try {
+            copy(s);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Tells readers the ship is gone. Must only be called by the owner.
+     */
+    void gone() {
+        final long stamp = lock.writeLock();
+        this.gone = true;
+        lock.unlockWrite(stamp);
+    }
+
+    /**
+     * Copies this snapshot into the reader's.
+     *
+     * @return {@code false} if the owner was publishing while we read, and {@code to} may hold a mix of old and new values.
+     */
+    boolean readInto(ShipSnapshot to) {
+        final long stamp = lock.tryOptimisticRead();
+        to.x = x;
+        to.y = y;
+        to.vx = vx;
+        to.vy = vy;
+        to.gone = gone;
+        return lock.validate(stamp);
+    }
+
+    /**
+     * Copies a record (that must only be read in a transaction) into a reader's snapshot.
+     */
+    void copy(Record<SpaceshipState> s) {
+        this.x = s.get($x);
+        this.y = s.get($y);
+        this.vx = s.get($vx);
+        this.vy = s.get($vy);
+        this.gone = false;
+    }
+}
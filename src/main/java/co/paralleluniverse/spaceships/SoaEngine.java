@@ -0,0 +1,575 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.spacebase.AABB;
+import static co.paralleluniverse.spacebase.AABB.X;
+import static co.paralleluniverse.spacebase.AABB.Y;
+import co.paralleluniverse.spacebase.MutableAABB;
+import static co.paralleluniverse.spaceships.Spaceship.*;
+import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import static java.lang.Math.*;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A data-oriented alternative to running each spaceship in its own actor ({@code engine = soa}).
+ * All ship state is kept in primitive structure-of-arrays columns, and the world is advanced in fixed ticks by a
+ * parallel fork/join pass that reads the previous buffer and writes the next one. Neighbors are found with a
+ * uniform grid rebuilt every tick, so the spatial index is only used to publish the ships to the renderer.
+ *
+ * The physics is {@link Spaceship}'s: the integrator and the neighbor rejection are its static helpers. Interactions
+ * that modify another ship (shots and explosions) are recorded during the parallel pass and applied sequentially at the
+ * beginning of the next tick. A ship that has finished blowing up is respawned in place of its old self, at a new
+ * random position, just like the actor engine starts a new actor for it.
+ */
+class SoaEngine implements Runnable {
+    private static final int LEAF_SIZE = 1024;
+    private static final byte ALIVE = (byte) Status.ALIVE.ordinal();
+    private static final byte BLOWING_UP = (byte) Status.BLOWING_UP.ordinal();
+    private static final Status[] STATUSES = Status.values();
+    //
+    private final Spaceships global;
+    private final int N;
+    private final AABB bounds;
+    private final long periodMillis;
+    private final int publishEvery;
+    private final ForkJoinPool pool;
+    private final SpatialIndex index;
+    private final Record<SpaceshipState>[] records;
+    // public state (double-buffered)
+    private Columns cur;
+    private Columns next;
+    // private state; only written by the owning ship's task
+    private final double[] chaseAx;
+    private final double[] chaseAy;
+    private final int[] lockedOn;
+    private final int[] timesHit;
+    private final long[] timeHit;
+    private final int[] shotTarget;
+    private final RandSpatial[] random;
+    // explosions applied in the current tick
+    private double[] blastX = new double[16];
+    private double[] blastY = new double[16];
+    private int blasts;
+    // uniform grid over cur
+    private final double cellSize;
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int[] cellStart;
+    private final int[] cellCursor;
+    private final int[] cellShips;
+    //
+    private long now;
+
+    @SuppressWarnings("unchecked")
+    SoaEngine(Spaceships global, int N, Properties props) {
+        this.global = global;
+        this.N = N;
+        this.bounds = global.bounds;
+        this.periodMillis = Long.parseLong(props.getProperty("soa-tick-millis", Integer.toString(MIN_PERIOD_MILLIS)));
+        this.publishEvery = "NONE".equalsIgnoreCase(props.getProperty("ui-component")) ? 0 : Integer.parseInt(props.getProperty("soa-publish-every", "3")); // publish only for the renderer
+        final int parallelism = Integer.parseInt(props.getProperty("parallelism", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        this.pool = new ForkJoinPool(parallelism);
+        this.index = global.index;
+
+        this.cur = new Columns(N);
+        this.next = new Columns(N);
+        this.chaseAx = new double[N];
+        this.chaseAy = new double[N];
+        this.lockedOn = new int[N];
+        this.timesHit = new int[N];
+        this.timeHit = new long[N];
+        this.shotTarget = new int[N];
+        this.random = new RandSpatial[N];
+        Arrays.fill(shotTarget, -1);
+
+        this.cellSize = max(global.range, 50);
+        this.gridWidth = (int) ceil((bounds.max(X) - bounds.min(X)) / cellSize) + 1;
+        this.gridHeight = (int) ceil((bounds.max(Y) - bounds.min(Y)) / cellSize) + 1;
+        this.cellStart = new int[gridWidth * gridHeight + 1];
+        this.cellCursor = new int[gridWidth * gridHeight];
+        this.cellShips = new int[N];
+
+        final long now = global.now();
+        this.records = new Record[N];
+        for (int i = 0; i < N; i++) {
+            spawn(cur, i, now);
+            next.copy(cur, i);
+
+            if (publishEvery > 0) {
+                final Record<SpaceshipState> s = SpaceshipState.stateType.newInstance();
+                s.set($id, i);
+                write(s, i);
+                s.set($token, index.insert(s, AABB.create(cur.x[i], cur.x[i], cur.y[i], cur.y[i])));
+                records[i] = s;
+            }
+        }
+    }
+
+    void start() {
+        final Thread thread = new Thread(this, "soa-engine");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        long prev = 0;
+        for (int k = 0;; k++) {
+            try {
+                this.now = global.now();
+                tick();
+                if (prev > 0)
+                    global.tickInterval.update(now - prev);
+                prev = now;
+
+                if (publishEvery > 0 && k % publishEvery == 0)
+                    publish();
+            } catch (Throwable t) { // the whole world is ticked by this thread, so it must keep going
+                System.err.println("Exception in SoA engine");
+                t.printStackTrace();
+            }
+            try {
+                final long sleep = now + periodMillis - global.now();
+                if (sleep > 0)
+                    Thread.sleep(sleep);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void tick() {
+        applyHits();
+        buildGrid();
+        pool.invoke(new Step(0, N));
+
+        final Columns tmp = cur;
+        cur = next;
+        next = tmp;
+    }
+
+    /**
+     * Applies the shots fired in the previous tick. Runs sequentially, and writes the current buffer directly.
+     */
+    private void applyHits() {
+        blasts = 0;
+        for (int i = 0; i < N; i++) {
+            final int j = shotTarget[i];
+            if (j >= 0) {
+                shotTarget[i] = -1;
+                hit(j, cur.x[i], cur.y[i]);
+            }
+        }
+    }
+
+    // see Spaceship.shot
+    private void hit(int i, double shooterX, double shooterY) {
+        timesHit[i]++;
+        timeHit[i] = now;
+        if (timesHit[i] < TIMES_HIT_TO_BLOW) {
+            final double dx = shooterX - cur.x[i];
+            final double dy = shooterY - cur.y[i];
+            final double d = max(mag(dx, dy), MIN_PROXIMITY);
+            reduceExternalVelocity(cur, i);
+            cur.exVx[i] += HIT_RECOIL_VELOCITY * dx / d;
+            cur.exVy[i] += HIT_RECOIL_VELOCITY * dy / d;
+        } else if (cur.status[i] == ALIVE) {
+            if (blasts == blastX.length) {
+                blastX = Arrays.copyOf(blastX, blasts * 2);
+                blastY = Arrays.copyOf(blastY, blasts * 2);
+            }
+            blastX[blasts] = cur.x[i];
+            blastY[blasts] = cur.y[i];
+            blasts++;
+
+            cur.status[i] = BLOWING_UP;
+            cur.vx[i] = 0;
+            cur.vy[i] = 0;
+            cur.exVx[i] = 0;
+            cur.exVy[i] = 0;
+            cur.ax[i] = 0;
+            cur.ay[i] = 0;
+            cur.blowTime[i] = now;
+        }
+    }
+
+    /**
+     * Starts a new generation of the given ship at a random position, in the given buffer.
+     * Only touches the ship's own entries, so it may be called from the parallel pass.
+     */
+    private void spawn(Columns c, int i, long now) {
+        final RandSpatial r = global.random.split(i, global.spawned(i)); // the same stream a Spaceship actor would get
+        random[i] = r;
+        lockedOn[i] = -1;
+        chaseAx[i] = 0;
+        chaseAy[i] = 0;
+        timesHit[i] = 0;
+        timeHit[i] = 0;
+
+        c.x[i] = r.randRange(bounds.min(X), bounds.max(X));
+        c.y[i] = r.randRange(bounds.min(Y), bounds.max(Y));
+        final double direction = r.nextDouble() * 2 * Math.PI;
+        final double speed = SPEED_LIMIT / 4 + r.nextGaussian() * global.speedVariance;
+        c.vx[i] = speed * cos(direction);
+        c.vy[i] = speed * sin(direction);
+        c.ax[i] = 0;
+        c.ay[i] = 0;
+        c.exVx[i] = 0;
+        c.exVy[i] = 0;
+        c.exVelocityUpdated[i] = 0;
+        c.timeFired[i] = 0;
+        c.shotLength[i] = 0;
+        c.blowTime[i] = 0;
+        limitSpeed(c, i);
+        c.lastMoved[i] = now;
+        c.status[i] = ALIVE;
+    }
+
+    private void buildGrid() {
+        Arrays.fill(cellStart, 0);
+        for (int i = 0; i < N; i++)
+            cellStart[cell(cur.x[i], cur.y[i]) + 1]++;
+        for (int c = 1; c < cellStart.length; c++)
+            cellStart[c] += cellStart[c - 1];
+        System.arraycopy(cellStart, 0, cellCursor, 0, cellCursor.length);
+        for (int i = 0; i < N; i++)
+            cellShips[cellCursor[cell(cur.x[i], cur.y[i])]++] = i;
+    }
+
+    private int cellX(double x) {
+        return min(gridWidth - 1, max(0, (int) ((x - bounds.min(X)) / cellSize)));
+    }
+
+    private int cellY(double y) {
+        return min(gridHeight - 1, max(0, (int) ((y - bounds.min(Y)) / cellSize)));
+    }
+
+    private int cell(double x, double y) {
+        return cellY(y) * gridWidth + cellX(x);
+    }
+
+    private final class Step extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        Step(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= LEAF_SIZE) {
+                final Stepper stepper = new Stepper();
+                for (int i = from; i < to; i++)
+                    stepper.step(i);
+                global.spaceshipsCycles.add(to - from);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new Step(from, mid), new Step(mid, to));
+            }
+        }
+    }
+
+    /**
+     * Advances ships by one tick. Reads {@code cur}, and writes only the stepped ship's entries in {@code next} and in
+     * the private state arrays.
+     */
+    private final class Stepper {
+        private final RadarQuery radarQuery = new RadarQuery(toRadians(30), MAX_SEARCH_RANGE);
+        private final RayCastQuery shotQuery = new RayCastQuery();
+        private final MutableAABB aabb = AABB.create(2);
+
+        void step(int i) {
+            next.copy(cur, i);
+            if (cur.status[i] == BLOWING_UP) {
+                if (now - cur.blowTime[i] >= BLOW_TILL_DELETE_DURATION)
+                    spawn(next, i, now); // see Spaceship.respawn
+                return;
+            }
+
+            applyBlasts(i);
+            if (lockedOn[i] < 0) {
+                if (now - timeHit[i] > SHOOT_INABILITY_DURATION && random[i].nextFloat() < SEARCH_PROBABLITY)
+                    searchForTargets(i);
+            } else
+                chaseAndShoot(i);
+            applyNeighborRejection(i);
+            move(i);
+            reduceExternalVelocity(next, i);
+        }
+
+        // see Spaceship.blast
+        private void applyBlasts(int i) {
+            for (int k = 0; k < blasts; k++) {
+                final double dx = blastX[k] - cur.x[i];
+                final double dy = blastY[k] - cur.y[i];
+                final double d = mag(dx, dy);
+                if (d < MIN_PROXIMITY || d > BLAST_RANGE)
+                    continue;
+                final double hitRecoil = blastRecoil(d);
+                reduceExternalVelocity(next, i);
+                next.exVx[i] += hitRecoil * dx / d;
+                next.exVy[i] += hitRecoil * dy / d;
+            }
+        }
+
+        // see Spaceship.searchForTargets
+        private void searchForTargets(int i) {
+            final double x = cur.x[i];
+            final double y = cur.y[i];
+            radarQuery.reset(x, y, cur.vx[i], cur.vy[i]);
+
+            int nearest = -1;
+            double nearestDistance2 = Double.MAX_VALUE;
+            for (int cy = cellY(y - MAX_SEARCH_RANGE), cy1 = cellY(y + MAX_SEARCH_RANGE); cy <= cy1; cy++) {
+                for (int cx = cellX(x - MAX_SEARCH_RANGE), cx1 = cellX(x + MAX_SEARCH_RANGE); cx <= cx1; cx++) {
+                    final int c = cy * gridWidth + cx;
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        final int j = cellShips[k];
+                        final double d2 = mag2(cur.x[j] - x, cur.y[j] - y);
+                        if (d2 > 100 & d2 < nearestDistance2 && radarQuery.queryElement(point(j), null)) { // not too close and not me
+                            nearest = j;
+                            nearestDistance2 = d2;
+                        }
+                    }
+                }
+            }
+            lockedOn[i] = nearest;
+            chaseAx[i] = 0;
+            chaseAy[i] = 0;
+        }
+
+        // see Spaceship.chaseAndShoot
+        private void chaseAndShoot(int i) {
+            final int j = lockedOn[i];
+            final double x = cur.x[i];
+            final double y = cur.y[i];
+            final double vx = cur.vx[i];
+            final double vy = cur.vy[i];
+            final AABB target = point(j);
+
+            final boolean inShotRange = shotQuery.reset(x, y, vx, vy, SHOOT_RANGE, SHOOT_ACCURACY).queryElement(target, null);
+            if (inShotRange & random[i].nextGaussian() < SHOOT_PROBABLITY) {
+                next.timeFired[i] = now;
+                next.shotLength[i] = mag(cur.x[j] - x, cur.y[j] - y);
+                shotTarget[i] = j;
+            }
+            if (radarQuery.reset(x, y, vx, vy).queryElement(target, null)) {
+                final double dx = cur.x[j] - x;
+                final double dy = cur.y[j] - y;
+                final double d = max(mag(dx, dy), MIN_PROXIMITY);
+                final double acc = 200;
+                chaseAx[i] = acc * dx / d;
+                chaseAy[i] = acc * dy / d;
+            } else
+                releaseLock(i);
+        }
+
+        private void releaseLock(int i) {
+            lockedOn[i] = -1;
+            chaseAx[i] = 0;
+            chaseAy[i] = 0;
+        }
+
+        // see Spaceship.applyNeighborRejection
+        private void applyNeighborRejection(int i) {
+            final double x = cur.x[i];
+            final double y = cur.y[i];
+            final double range = global.range;
+            final double range2 = range * range;
+            double ax = chaseAx[i];
+            double ay = chaseAy[i];
+            for (int cy = cellY(y - range), cy1 = cellY(y + range); cy <= cy1; cy++) {
+                for (int cx = cellX(x - range), cx1 = cellX(x + range); cx <= cx1; cx++) {
+                    final int c = cy * gridWidth + cx;
+                    for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                        final int j = cellShips[k];
+                        if (j == i)
+                            continue;
+                        final double dx = cur.x[j] - x;
+                        final double dy = cur.y[j] - y;
+                        if (mag2(dx, dy) > range2)
+                            continue;
+                        final double rejection = rejectionPerDistance(dx, dy);
+                        ax -= rejection * dx;
+                        ay -= rejection * dy;
+                    }
+                }
+            }
+            next.ax[i] = ax;
+            next.ay[i] = ay;
+        }
+
+        // see Spaceship.move
+        private void move(int i) {
+            final long lastMoved = next.lastMoved[i];
+            if (lastMoved > 0 & now > lastMoved) {
+                double x = next.x[i];
+                double y = next.y[i];
+                double vx = next.vx[i];
+                double vy = next.vy[i];
+                double ax = next.ax[i];
+                double ay = next.ay[i];
+                final double exVx = next.exVx[i];
+                final double exVy = next.exVy[i];
+
+                final double duration = seconds(now - lastMoved);
+
+                x = displace(x, vx, exVx, ax, duration);
+                y = displace(y, vy, exVy, ay, duration);
+
+                vx = accelerate(vx, ax, duration);
+                vy = accelerate(vy, ay, duration);
+                final double f = speedLimitFactor(vx, vy);
+                vx *= f;
+                vy *= f;
+
+                if (outOfBounds(x, bounds.min(X), bounds.max(X))) {
+                    x = confine(x, bounds.min(X), bounds.max(X));
+                    vx = bounce(vx);
+                    ax = 0;
+                }
+                if (outOfBounds(y, bounds.min(Y), bounds.max(Y))) {
+                    y = confine(y, bounds.min(Y), bounds.max(Y));
+                    vy = bounce(vy);
+                    ay = 0;
+                }
+
+                next.x[i] = x;
+                next.y[i] = y;
+                next.vx[i] = vx;
+                next.vy[i] = vy;
+                next.ax[i] = ax;
+                next.ay[i] = ay;
+            }
+            next.lastMoved[i] = now;
+        }
+
+        private AABB point(int j) {
+            aabb.min(X, cur.x[j]);
+            aabb.max(X, cur.x[j]);
+            aabb.min(Y, cur.y[j]);
+            aabb.max(Y, cur.y[j]);
+            return aabb;
+        }
+    }
+
+    // see Spaceship.limitSpeed
+    private static void limitSpeed(Columns c, int i) {
+        final double f = speedLimitFactor(c.vx[i], c.vy[i]);
+        c.vx[i] *= f;
+        c.vy[i] *= f;
+    }
+
+    // see Spaceship.reduceExternalVelocity
+    private void reduceExternalVelocity(Columns c, int i) {
+        c.exVx[i] = decayExternalVelocity(c.exVx[i], c.exVelocityUpdated[i], now);
+        c.exVy[i] = decayExternalVelocity(c.exVy[i], c.exVelocityUpdated[i], now);
+        c.exVelocityUpdated[i] = now;
+    }
+
+    /**
+     * Copies the current state into the spatial index records read by the renderer.
+     * The records are written outside of a transaction, so a reader might see a partially updated record.
+     */
+    private void publish() {
+        for (int i = 0; i < N; i++) {
+            final Record<SpaceshipState> s = records[i];
+            if (s == null)
+                continue;
+            write(s, i);
+            index.update(s.get($token), AABB.create(cur.x[i], cur.x[i], cur.y[i], cur.y[i]));
+        }
+    }
+
+    private void write(Record<SpaceshipState> s, int i) {
+        s.set($x, cur.x[i]);
+        s.set($y, cur.y[i]);
+        s.set($vx, cur.vx[i]);
+        s.set($vy, cur.vy[i]);
+        s.set($ax, cur.ax[i]);
+        s.set($ay, cur.ay[i]);
+        s.set($exVx, cur.exVx[i]);
+        s.set($exVy, cur.exVy[i]);
+        s.set($lastMoved, cur.lastMoved[i]);
+        s.set($exVelocityUpdated, cur.exVelocityUpdated[i]);
+        s.set($timeFired, cur.timeFired[i]);
+        s.set($shotLength, cur.shotLength[i]);
+        s.set($blowTime, cur.blowTime[i]);
+        s.set($status, STATUSES[cur.status[i]]);
+    }
+
+    private static final class Columns {
+        final double[] x;
+        final double[] y;
+        final double[] vx;
+        final double[] vy;
+        final double[] ax;
+        final double[] ay;
+        final double[] exVx;
+        final double[] exVy;
+        final double[] shotLength;
+        final long[] lastMoved;
+        final long[] exVelocityUpdated;
+        final long[] timeFired;
+        final long[] blowTime;
+        final byte[] status;
+
+        Columns(int n) {
+            this.x = new double[n];
+            this.y = new double[n];
+            this.vx = new double[n];
+            this.vy = new double[n];
+            this.ax = new double[n];
+            this.ay = new double[n];
+            this.exVx = new double[n];
+            this.exVy = new double[n];
+            this.shotLength = new double[n];
+            this.lastMoved = new long[n];
+            this.exVelocityUpdated = new long[n];
+            this.timeFired = new long[n];
+            this.blowTime = new long[n];
+            this.status = new byte[n];
+        }
+
+        void copy(Columns from, int i) {
+            x[i] = from.x[i];
+            y[i] = from.y[i];
+            vx[i] = from.vx[i];
+            vy[i] = from.vy[i];
+            ax[i] = from.ax[i];
+            ay[i] = from.ay[i];
+            exVx[i] = from.exVx[i];
+            exVy[i] = from.exVy[i];
+            shotLength[i] = from.shotLength[i];
+            lastMoved[i] = from.lastMoved[i];
+            exVelocityUpdated[i] = from.exVelocityUpdated[i];
+            timeFired[i] = from.timeFired[i];
+            blowTime[i] = from.blowTime[i];
+            status[i] = from.status[i];
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.db.quasar.MigrationListener;
+import co.paralleluniverse.db.record.StrandedTransactionalRecord;
+import co.paralleluniverse.db.record.TransactionalRecord;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.spacebase.AABB;
+import co.paralleluniverse.spacebase.SpaceBaseBuilder;
+import co.paralleluniverse.spacebase.SpatialQuery;
+import co.paralleluniverse.spacebase.SpatialToken;
+import co.paralleluniverse.spacebase.SpatialVisitor;
+import co.paralleluniverse.spacebase.ElementUpdater;
+import co.paralleluniverse.spacebase.quasar.Element;
+import co.paralleluniverse.spacebase.quasar.ElementUpdater1;
+import co.paralleluniverse.spacebase.quasar.ResultSet;
+import co.paralleluniverse.spacebase.quasar.SpaceBase;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+/**
+ * A {@link SpatialIndex} backed by SpaceBase.
+ */
+class SpaceBaseIndex implements SpatialIndex {
+    private static final double NEAREST_INITIAL_RADIUS = 50;
+    private static final int STR_NODE_SIZE = 16; // about the width of a typical node
+    private final SpaceBase<Record<SpaceshipState>> sb;
+    private final co.paralleluniverse.spacebase.SpaceBase<Record<SpaceshipState>> plain;
+
+    SpaceBaseIndex(SpaceBase<Record<SpaceshipState>> sb) {
+        this.sb = sb;
+        this.plain = SpaceBaseBuilder.from(sb);
+    }
+
+    @Override
+    public Session newSession() {
+        return new SpaceBaseSession();
+    }
+
+    @Override
+    public SpatialToken insert(Record<SpaceshipState> s, AABB bounds) {
+        return plain.insert(s, bounds);
+    }
+
+    /**
+     * SpaceBase can't be bulk-loaded, so this is still one insert per element. They're issued in sort-tile-recursive
+     * order: sorted into vertical slices by x, and by y within each slice, and the slices are inserted in parallel, so
+     * that concurrent insertions are far apart while consecutive ones tend to land in the same nodes.
+     */
+    @Override
+    public void insertAll(Object[] owners, Record<SpaceshipState>[] ss, AABB[] bounds) {
+        final int n = ss.length;
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        final int slices = (int) Math.ceil(Math.sqrt(Math.ceil((double) n / STR_NODE_SIZE)));
+        final int sliceSize = slices * STR_NODE_SIZE;
+        Arrays.parallelSort(order, (i, j) -> Double.compare(center(bounds[i], AABB.X), center(bounds[j], AABB.X)));
+        for (int from = 0; from < n; from += sliceSize)
+            Arrays.parallelSort(order, from, Math.min(n, from + sliceSize), (i, j) -> Double.compare(center(bounds[i], AABB.Y), center(bounds[j], AABB.Y)));
+
+        IntStream.range(0, (n + sliceSize - 1) / sliceSize).parallel().forEach(slice -> {
+            for (int k = slice * sliceSize, to = Math.min(n, k + sliceSize); k < to; k++) {
+                final int i = order[k];
+                final SpatialToken token = owners != null
+                        ? plain.insert(new TransactionalRecord<>(owners[i], ss[i]), bounds[i])
+                        : plain.insert(ss[i], bounds[i]);
+                ss[i].set(SpaceshipState.$token, token);
+            }
+        });
+    }
+
+    private static double center(AABB aabb, int dim) {
+        return (aabb.min(dim) + aabb.max(dim)) / 2;
+    }
+
+    @Override
+    public void update(SpatialToken token, AABB bounds) {
+        plain.update(token, bounds);
+    }
+
+    @Override
+    public void delete(SpatialToken token) {
+        plain.delete(token);
+    }
+
+    @Override
+    public void query(SpatialQuery<? super Record<SpaceshipState>> query, SpatialVisitor<Record<SpaceshipState>> visitor) {
+        plain.query(query, visitor);
+    }
+
+    @Override
+    public void joinAllPendingOperations() throws InterruptedException {
+        plain.joinAllPendingOperations();
+    }
+
+    private class SpaceBaseSession implements Session {
+        private final ElementEqualsQuery meQuery = new ElementEqualsQuery();
+        private final SpaceBaseResult result = new SpaceBaseResult();
+
+        @Override
+        public Record<SpaceshipState> insert(Object owner, Record<SpaceshipState> state, AABB bounds) throws SuspendExecution {
+            state.set(SpaceshipState.$token, sb.insert(new TransactionalRecord<>(owner, state), bounds));
+            return new StrandedTransactionalRecord<>(state, true, sb); // protect state
+        }
+
+        @Override
+        public Record<SpaceshipState> adopt(Record<SpaceshipState> state) {
+            return new StrandedTransactionalRecord<>(state, true, sb);
+        }
+
+        @Override
+        public void delete(SpatialToken token) throws SuspendExecution {
+            sb.delete(token);
+        }
+
+        @Override
+        public void setMigrationWatch(SpatialToken token, MigrationListener listener) {
+            sb.setMigrationWatchOn(token, listener);
+        }
+
+        @Override
+        public Result query(SpatialQuery<? super Record<SpaceshipState>> query) throws SuspendExecution, InterruptedException {
+            return result.open(sb.query(query));
+        }
+
+        @Override
+        public Result queryForUpdate(SpatialQuery<? super Record<SpaceshipState>> query, Record<SpaceshipState> me, AABB myBounds) throws SuspendExecution, InterruptedException {
+            final ResultSet<Record<SpaceshipState>> rs = sb.queryForUpdate(query, meQuery.reset(me, myBounds), false);
+            assert rs.getResultForUpdate().size() == 1;
+            return result.open(rs);
+        }
+
+        @Override
+        public Result read(SpatialToken token) throws SuspendExecution, InterruptedException {
+            return result.open(sb.readElement(token));
+        }
+
+        /**
+         * SpaceBase doesn't let us order its traversal by distance, or stop it at the first candidate, so we search in
+         * circles of doubling radius, starting at the area's nearest edge, until a candidate is found. Each circle is a
+         * query transaction of its own.
+         */
+        @Override
+        public Result nearest(NearestQuery query) throws SuspendExecution, InterruptedException {
+            final double max = query.maxRadius();
+            for (double r = Math.min(query.minRadius() + NEAREST_INITIAL_RADIUS, max);; r = Math.min(r * 2, max)) {
+                final ResultSet<Record<SpaceshipState>> rs = sb.query(query.limit(r));
+                Record<SpaceshipState> nearest = null;
+                double nearestDistance2 = Double.MAX_VALUE;
+                for (Record<SpaceshipState> s : rs.getResultReadOnly()) {
+                    if (query.excludes(s))
+                        continue;
+                    final double d2 = query.distanceSquared(s.get(SpaceshipState.$x), s.get(SpaceshipState.$y));
+                    if (d2 < nearestDistance2) {
+                        nearest = s;
+                        nearestDistance2 = d2;
+                    }
+                }
+                if (nearest != null || r >= max)
+                    return result.open(rs, nearest);
+                rs.close();
+            }
+        }
+
+        @Override
+        public Result update(SpatialToken token) throws SuspendExecution, InterruptedException {
+            return result.open(sb.update(token));
+        }
+    }
+
+    /**
+     * Adapts whichever SpaceBase transaction is open. Reused by its session.
+     */
+    private static class SpaceBaseResult implements Result {
+        private ResultSet<Record<SpaceshipState>> rs;
+        private Element<Record<SpaceshipState>> element;
+        private ElementUpdater1<Record<SpaceshipState>> updater;
+        private Record<SpaceshipState> found;
+
+        Result open(ResultSet<Record<SpaceshipState>> rs) {
+            this.rs = rs;
+            return this;
+        }
+
+        Result open(ResultSet<Record<SpaceshipState>> rs, Record<SpaceshipState> found) {
+            this.rs = rs;
+            this.found = found;
+            return this;
+        }
+
+        Result open(Element<Record<SpaceshipState>> element) {
+            this.element = element;
+            return this;
+        }
+
+        Result open(ElementUpdater1<Record<SpaceshipState>> updater) {
+            this.updater = updater;
+            return this;
+        }
+
+        @Override
+        public Collection<Record<SpaceshipState>> elements() {
+            return rs != null ? rs.getResultReadOnly() : Collections.<Record<SpaceshipState>>emptySet();
+        }
+
+        @Override
+        public Record<SpaceshipState> element() {
+            return element != null ? element.get() : found;
+        }
+
+        /**
+         * Does nothing if the element had been deleted, and so wasn't found for update.
+         */
+        @Override
+        public void update(AABB bounds) {
+            if (updater != null) {
+                if (updater.elem() != null)
+                    updater.update(bounds);
+                return;
+            }
+            if (rs == null)
+                return;
+            final Set<ElementUpdater<Record<SpaceshipState>>> forUpdate = rs.getResultForUpdate();
+            if (forUpdate.isEmpty())
+                return;
+            // SpaceBase hands the element found for update only in a Set, so a queryForUpdate result still allocates an
+            // iterator here (unless the JIT elides it); update(token) results don't
+            forUpdate.iterator().next().update(bounds);
+        }
+
+        @Override
+        public void close() throws SuspendExecution {
+            try {
+                if (rs != null)
+                    rs.close();
+                if (element != null)
+                    element.close();
+                if (updater != null)
+                    updater.close();
+            } finally {
+                this.rs = null;
+                this.element = null;
+                this.updater = null;
+                this.found = null;
+            }
+        }
+    }
+}
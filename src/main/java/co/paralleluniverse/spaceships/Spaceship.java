@@ -22,28 +22,20 @@ package co.paralleluniverse.spaceships;
 import co.paralleluniverse.actors.BasicActor;
 import co.paralleluniverse.actors.MailboxConfig;
 import co.paralleluniverse.data.record.Record;
-import co.paralleluniverse.db.record.StrandedTransactionalRecord;
-import co.paralleluniverse.db.record.TransactionalRecord;
 import co.paralleluniverse.fibers.*;
 import co.paralleluniverse.spacebase.AABB;
+import co.paralleluniverse.spacebase.BoundedSpatialQuery;
 import static co.paralleluniverse.spacebase.AABB.X;
 import static co.paralleluniverse.spacebase.AABB.Y;
-import co.paralleluniverse.spacebase.ElementUpdater;
 import co.paralleluniverse.spacebase.MutableAABB;
-import co.paralleluniverse.spacebase.SpatialQueries;
 import co.paralleluniverse.spacebase.SpatialToken;
-import co.paralleluniverse.spacebase.quasar.Element;
-import co.paralleluniverse.spacebase.quasar.ElementUpdater1;
-import co.paralleluniverse.spacebase.quasar.ResultSet;
 import static co.paralleluniverse.spaceships.SpaceshipState.*;
+import co.paralleluniverse.strands.Strand;
 import co.paralleluniverse.strands.channels.Channels;
 import co.paralleluniverse.strands.concurrent.Phaser;
 import static java.lang.Math.*;
 import java.nio.FloatBuffer;
-import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.Queue;
-import java.util.Set;
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -53,32 +45,41 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
     public static enum Status {
         ALIVE, BLOWING_UP, GONE
     };
-    private static final int MIN_PERIOD_MILLIS = 30;
-    private static final int MAX_SEARCH_RANGE = 400;
-    private static final int MAX_SEARCH_RANGE_SQUARED = MAX_SEARCH_RANGE * MAX_SEARCH_RANGE;
-    private static final int TIMES_HIT_TO_BLOW = 30;
-    private static final double REJECTION_COEFF = 80000.0;
-    private static final double SPEED_LIMIT = 100.0;
-    private static final double SPEED_BOUNCE_DAMPING = 0.9;
-    private static final double MIN_PROXIMITY = 4;
-    private static final double HIT_RECOIL_VELOCITY = -100.0;
-    private static final int BLAST_RANGE = 200;
-    private static final int BLOW_TILL_DELETE_DURATION = 1000;
-    private static final double SEARCH_PROBABLITY = 0.02;
-    private static final int SHOOT_INABILITY_DURATION = 3000;
-    private static final int SHOOT_RANGE = 200;
-    private static final int SHOOT_ACCURACY = 10;
-    private static final double SHOOT_PROBABLITY = 0.2;
+    static final int MIN_PERIOD_MILLIS = 30;
+    static final int MAX_SEARCH_RANGE = 400;
+    static final int MAX_SEARCH_RANGE_SQUARED = MAX_SEARCH_RANGE * MAX_SEARCH_RANGE;
+    static final int TIMES_HIT_TO_BLOW = 30;
+    static final double REJECTION_COEFF = 80000.0;
+    static final double SPEED_LIMIT = 100.0;
+    static final double SPEED_BOUNCE_DAMPING = 0.9;
+    static final double MIN_PROXIMITY = 4;
+    static final double HIT_RECOIL_VELOCITY = -100.0;
+    static final int BLAST_RANGE = 200;
+    static final int BLOW_TILL_DELETE_DURATION = 1000;
+    static final double SEARCH_PROBABLITY = 0.02;
+    static final int SHOOT_INABILITY_DURATION = 3000;
+    static final int SHOOT_RANGE = 200;
+    static final int SHOOT_ACCURACY = 10;
+    static final int SHOOT_SECTION = 50; // the length of the part of the beam searched for a hit at a time
+    static final double SHOOT_PROBABLITY = 0.2;
+    private static final SpaceshipMessage TICK = new SpaceshipMessage(); // sent by the tick scheduler
     //
     private final Spaceships global;
+    private final SpatialIndex.Session space;
     private final RandSpatial random;
     private final int id;
     private Record<SpaceshipState> state; // the ships' public state - explanation below
-    private final Queue<DelayedRunnable> delayQueue = new PriorityQueue<DelayedRunnable>();
+    private Record<SpaceshipState> published; // my record in the index; with dead reckoning or group commit, state is a private copy
+    private Record<SpaceshipState> record; // my record as inserted in the index, not protected by transactions
     private final Phaser phaser;
+    private TickScheduler.Timer<SpaceshipMessage> tickTimer;
+    private ImpulseMailbox impulses;
+    private GroupCommitter.Slot commitSlot; // null unless written and moved by the group committer
+    private long nextTick;
     // private state:
     private Status status = Status.ALIVE;
     private SpatialToken lockedOn;
+    private ShipSnapshot lockedOnSnapshot; // null if the target doesn't publish one
     private double chaseAx;
     private double chaseAy;
     private double exVx = 0;
@@ -89,26 +90,110 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
     private double shotLength = 10f;
     // "external velocity" does not result from thruster (but from nearby explosions or by getting hit), and threfore does not affect heading
     private long exVelocityUpdated = 0;
+    // my own state, which I only read from fields, and flush to my record once a tick (and when I blow up)
+    private double x;
+    private double y;
+    private double vx;
+    private double vy;
+    private double ax;
+    private double ay;
+    private long lastMoved;
+    // hibernation
+    private boolean neighborsInRange; // whether I've been rejected by any neighbor this tick
+    private long idleSince;
+    private boolean fightNow; // woken from hibernation to fight
+    private Hibernator.Dormant dormant; // set when I'm hibernating
+    private int region = -1; // the region whose scheduler I run on
+    private Spaceship successor; // set when I'm moving to another region's scheduler
     private long start;
+    private long lastTick;
+    // reused every tick so that the steady state doesn't allocate
+    private final MutableAABB myAABB = AABB.create(2); // my bounds in the index (with the group committer, as last staged)
+    private final MutableAABB newAABB = AABB.create(2);
+    private final MutableAABB targetAABB = AABB.create(2);
+    private final MutableAABB checkAABB = AABB.create(2);
+    private final PointRangeQuery neighborQuery = new PointRangeQuery();
+    private final BlastField.Cursor blasts = new BlastField.Cursor();
+    private final NeighborList neighbors; // null if disabled
+    private final RadarQuery radarQuery = new RadarQuery(toRadians(30), MAX_SEARCH_RANGE);
+    private final NearestQuery targetQuery = new NearestQuery();
+    private final RayCastQuery shotQuery = new RayCastQuery();
+    private final NearestQuery hitQuery = new NearestQuery();
+    private final ShipSnapshot snapshot; // mine, published for others to read
+    private final ShipSnapshot target = new ShipSnapshot(); // my copy of the target's
 
     // The public state is only updated by the owning Spaceship, and only in a SB transaction.
     // Therefore the owning spaceship can read it any time, but anyone else (other spacehips or the renderer) must only do so in
     // a transaction.
     public Spaceship(Spaceships global, int id, Phaser phaser) {
+        this(global, id, phaser, newState(global), new ShipSnapshot());
+        state.set($id, this.id);
+        this.x = random.randRange(global.bounds.min(X), global.bounds.max(X));
+        this.y = random.randRange(global.bounds.min(Y), global.bounds.max(Y));
+        final double direction = random.nextDouble() * 2 * Math.PI;
+        final double speed = SPEED_LIMIT / 4 + random.nextGaussian() * global.speedVariance;
+        setVelocityDir(direction, speed);
+        flush();
+    }
+
+    /**
+     * Wakes a dormant ship, taking over its record in the index.
+     */
+    Spaceship(Spaceships global, Hibernator.Dormant dormant) {
+        this(global, dormant.id, null, dormant.state, dormant.state.get($snapshot));
+        this.x = state.get($x);
+        this.y = state.get($y);
+        this.vx = state.get($vx);
+        this.vy = state.get($vy);
+        this.lastMoved = state.get($lastMoved);
+        this.timeFired = state.get($timeFired);
+        this.shotLength = state.get($shotLength);
+        this.exVelocityUpdated = state.get($exVelocityUpdated);
+        this.timesHit = dormant.timesHit;
+        this.timeHit = dormant.timeHit;
+        this.fightNow = dormant.fight;
+    }
+
+    /**
+     * Takes over from a ship that is moving to another region's scheduler, adopting its record in the index, like a
+     * woken ship does. Must be called on the old ship's strand, once it has {@link #handOver() handed over} its record.
+     */
+    private Spaceship(Spaceship from) {
+        this(from.global, from.id, from.phaser, from.record, from.snapshot);
+        this.x = from.x;
+        this.y = from.y;
+        this.vx = from.vx;
+        this.vy = from.vy;
+        this.ax = from.ax;
+        this.ay = from.ay;
+        this.lastMoved = from.lastMoved;
+        this.exVx = from.exVx;
+        this.exVy = from.exVy;
+        this.exVelocityUpdated = from.exVelocityUpdated;
+        this.timesHit = from.timesHit;
+        this.timeHit = from.timeHit;
+        this.timeFired = from.timeFired;
+        this.shotLength = from.shotLength;
+        this.lockedOn = from.lockedOn;
+        this.lockedOnSnapshot = from.lockedOnSnapshot;
+        this.chaseAx = from.chaseAx;
+        this.chaseAy = from.chaseAy;
+    }
+
+    private Spaceship(Spaceships global, int id, Phaser phaser, Record<SpaceshipState> state, ShipSnapshot snapshot) {
+        // at most a tick, an impulse wake-up and a delayed action are ever pending, so the mailbox can't overflow
         super(new MailboxConfig(10, Channels.OverflowPolicy.THROW));
         this.id = id;
         this.phaser = phaser;
 
         this.global = global;
-        this.random = global.random;
+        this.space = global.index.newSession();
+        this.random = global.random.split(id, global.spawned(id)); // each ship, and each time it's started, has its own random stream
+        this.neighbors = global.neighborSkin > 0 ? new NeighborList(global.neighborSkin, global.deadReckoning()) : null;
 
-        this.state = SpaceshipState.stateType.newInstance();
-        state.set($id, this.id);
-        state.set($x, random.randRange(global.bounds.min(X), global.bounds.max(X)));
-        state.set($y, random.randRange(global.bounds.min(Y), global.bounds.max(Y)));
-        final double direction = random.nextDouble() * 2 * Math.PI;
-        final double speed = SPEED_LIMIT / 4 + random.nextGaussian() * global.speedVariance;
-        setVelocityDir(direction, speed);
+        this.state = state;
+        this.published = state;
+        this.snapshot = snapshot;
     }
 
     @Override
@@ -124,51 +209,105 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
         start = System.nanoTime();
         try {
             state.set($spaceship, ref());
-            state.set($token, global.sb.insert(new TransactionalRecord<>(this, state), getAABB()));
-            this.state = new StrandedTransactionalRecord<>(state, true, global.sb); // protect state
-            global.sb.setMigrationWatchOn(state.get($token), token -> migrate());
+            if (state.get($impulses) != null) { // woken from hibernation
+                this.impulses = state.get($impulses);
+                impulses.reown(ref());
+            } else {
+                this.impulses = new ImpulseMailbox(ref(), global.impulses, global.impulsesCoalesced);
+                state.set($impulses, impulses);
+            }
+            snapshot.publish(state);
+            state.set($snapshot, snapshot);
+            if (global.pairwise != null)
+                global.pairwise.register(id, snapshot);
+            final boolean preloaded = state.get($token) != null; // inserted with the rest of the world by a fast start
+            this.record = state;
+            this.state = preloaded ? space.adopt(state) : space.insert(this, state, getAABB());
+            if (global.committer != null)
+                this.commitSlot = new GroupCommitter.Slot(state.get($token), record); // it writes my record, and moves me
+            getIndexBounds(x, y, myAABB);
+            this.published = state;
+            if (global.deadReckoning() || commitSlot != null) {
+                // I move a private copy of my state, and only publish it when my published trajectory is too far off,
+                // or have the committer publish it
+                this.state = newState(global);
+                copyState(published, state);
+            }
+            space.setMigrationWatch(state.get($token), token -> migrate());
+            blasts.since(lastMoved > 0 ? lastMoved : now()); // a woken or moved ship collects the blasts since it last moved
+            if (global.regions != null)
+                this.region = region();
+
+            if (phaser == null) {
+                // ticks are sent by the tick scheduler; start at a phase of the period different from our neighbors'
+                this.tickTimer = new TickScheduler.Timer<>(ref(), TICK);
+                this.nextTick = now() + global.scheduler.nextPhase(MIN_PERIOD_MILLIS);
+                global.scheduler.schedule(tickTimer, nextTick);
+            }
 
             record(1, "Spaceship", "doRun", "%s", this);
             for (int i = 0;; i++) {
-                SpaceshipMessage message;
-                if (phaser == null) {
-                    final long nextCycle = status == Status.ALIVE ? Math.min(state.get($lastMoved) + MIN_PERIOD_MILLIS, nextActionTime()) : nextActionTime();
-                    message = receive(nextCycle - now(), TimeUnit.MILLISECONDS);
-                } else
+                final SpaceshipMessage message;
+                if (phaser == null)
+                    message = receive();
+                else
                     message = tryReceive();
 
                 record(1, "Spaceship", "doRun 2", "%s", this);
                 final long now = now();
 
-                if (message != null) {
-                    // handle message
-                    if (message instanceof Shot)
-                        shot(now, ((Shot) message).x, ((Shot) message).y);
-                    else if (message instanceof Blast)
-                        blast(now, ((Blast) message).x, ((Blast) message).y);
-                } else {
-                    // no message
-                    runDelayed(now); // apply delayed actions
-
-                    switch (status) {
-                        case GONE:
-                            record(1, "Spaceship", "doRun", "%s: gone", this);
-                            return null;
-                        case ALIVE:
-                            if (!isLockedOnTarget()) {
-                                if (canFight(now) && wantToFight())
-                                    searchForTargets();
-                            } else
-                                chaseAndShoot();
-                            applyNeighborRejectionAndMove(now);
-                            break;
-                        case BLOWING_UP:
+                if (message == ImpulseMailbox.WAKE)
+                    impulses(now);
+                else if (message instanceof DelayedRunnable)
+                    ((DelayedRunnable) message).run();
+                else {
+                    // a tick (or, with a phaser, no message)
+                    if (status == Status.ALIVE) {
+                        if (!isLockedOnTarget()) {
+                            if (canFight(now) && (fightNow || wantToFight()))
+                                searchForTargets();
+                            fightNow = false;
+                        } else
+                            chaseAndShoot();
+                        applyNeighborRejectionAndMove(now);
                     }
 
                     global.spaceshipsCycles.inc();
+                    if (lastTick > 0)
+                        global.tickInterval.update(now - lastTick);
+                    else
+                        global.firstTick(id);
+                    lastTick = now;
+
+                    if (status == Status.ALIVE && region >= 0 && global.regions.mustLeave(region, x, y)) {
+                        // my successor takes over my record, so I'm never left in the index twice, or with no actor
+                        // moving me; if it can't be sent to my shard, I keep my record, and try again
+                        handOver();
+                        final Spaceship next = new Spaceship(this);
+                        if (global.shards.start(next)) {
+                            global.regionMoves.inc();
+                            this.successor = next;
+                            return null;
+                        }
+                        global.startsDeferred.inc();
+                        if (global.committer != null)
+                            this.commitSlot = new GroupCommitter.Slot(state.get($token), record);
+                    }
 
                     if (phaser != null)
                         phaser.arriveAndAwaitAdvance();
+                    else if (status == Status.ALIVE) {
+                        if (mayHibernate(now)) {
+                            hibernate(now);
+                            return null;
+                        }
+                        scheduleTick(now);
+                    }
+                }
+
+                if (status == Status.GONE) {
+                    record(1, "Spaceship", "doRun", "%s: gone", this);
+                    return null;
                 }
                 if (isRecordingLevel(1))
                     record(1, "Spaceship", "doRun", "%s: iter %s", this, i);
@@ -181,10 +320,79 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
             record(1, "Spaceship", "doRun", "%s: DONE", this);
             if (phaser != null)
                 phaser.arriveAndDeregister();
-            global.sb.delete(state.get($token));
+            if (commitSlot != null)
+                global.committer.remove(commitSlot);
+            if (dormant != null)
+                global.hibernator.hibernate(dormant);
+            else if (successor == null) { // or else my successor has my record
+                snapshot.gone();
+                space.delete(state.get($token));
+                if (global.shards != null) // my shard doesn't restart me
+                    respawn();
+            }
         }
     }
 
+    /**
+     * Has my shard start a new ship in my place once I'm gone, trying again, backing off, until it can be asked to, so
+     * that the fleet doesn't shrink.
+     */
+    private void respawn() throws SuspendExecution, InterruptedException {
+        for (long backoff = MIN_PERIOD_MILLIS; !global.shards.respawn(id); backoff = min(backoff * 2, 1000)) {
+            global.startsDeferred.inc();
+            Strand.sleep(backoff);
+        }
+    }
+
+    /**
+     * Whether I've been idle - with no neighbors, no target, no impulses and no external velocity to speak of - long
+     * enough to hibernate.
+     */
+    private boolean mayHibernate(long now) {
+        if (global.hibernator == null)
+            return false;
+        if (neighborsInRange | isLockedOnTarget() || status != Status.ALIVE || impulses.isPending()
+                || mag(exVx, exVy) > Hibernator.MAX_EXTERNAL_SPEED) {
+            idleSince = 0;
+            return false;
+        }
+        if (idleSince == 0)
+            idleSince = now;
+        return now - idleSince >= global.hibernator.idleMillis;
+    }
+
+    /**
+     * Leaves my record to the hibernator, to be moved until I'm woken. My actor ends.
+     */
+    private void hibernate(long now) throws InterruptedException, SuspendExecution {
+        this.exVx = 0;
+        this.exVy = 0;
+        this.ax = 0;
+        this.ay = 0;
+        handOver();
+        // the number of ticks until I want to fight is geometrically distributed
+        final long ticks = 1 + (long) (Math.log(1 - random.nextDouble()) / Math.log(1 - SEARCH_PROBABLITY));
+        final long wake = max(now + ticks * MIN_PERIOD_MILLIS, timeHit + SHOOT_INABILITY_DURATION);
+        this.dormant = new Hibernator.Dormant(id, record, wake, timesHit, timeHit);
+    }
+
+    /**
+     * Writes all of my state to my record myself, so that whoever takes it over - the hibernator, or my successor - starts
+     * from where I am. The group committer no longer writes it.
+     */
+    private void handOver() throws InterruptedException, SuspendExecution {
+        stopCommits();
+        try (SpatialIndex.Result up = space.update(state.get($token))) {
+            flush();
+            if (published != state)
+                copyState(state, published);
+            snapshot.publish(published);
+            if (commitSlot != null)
+                up.update(myAABB); // where I last staged myself
+        }
+        this.commitSlot = null;
+    }
+
     private boolean canFight(long now) {
         return now - timeHit > SHOOT_INABILITY_DURATION;
     }
@@ -196,69 +404,97 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
     private void searchForTargets() throws SuspendExecution, InterruptedException {
         record(1, "Spaceship", "searchForTargets", "%s: searching...", this);
 
-        try (ResultSet<Record<SpaceshipState>> rs = global.sb.query(new RadarQuery(state.get($x), state.get($y), state.get($vx), state.get($vy), toRadians(30), MAX_SEARCH_RANGE))) {
-            record(1, "Spaceship", "searchForTargets", "%s: size of radar query: %d", this, rs.getResultReadOnly().size());
-
-            // lock on nearest target
-            rs.getResultReadOnly().stream()
-                    .filter(s -> distanceFromMe2(s) > 100) // not too close and not me
-                    .min(Comparator.comparingDouble(s -> distanceFromMe2(s)))
-                    .ifPresent(s -> lockOnTarget(s));
+        global.spaceshipsQueries.inc();
+        // lock on nearest target on the radar that's not too close (and not me, wherever my bounds are centered)
+        final RadarQuery radar = radarQuery.reset(x, y, vx, vy);
+        try (SpatialIndex.Result rs = space.nearest(targetQuery.reset(x, y, 10, radar).excluding(id))) {
+            if (rs.element() != null && reallyMatches(radar, rs.element(), now()))
+                lockOnTarget(rs.element());
         }
     }
 
-    private double distanceFromMe2(Record<SpaceshipState> s) {
-        return mag2(s.get($x) - state.get($x), s.get($y) - state.get($y));
-    }
-
     private void chaseAndShoot() throws SuspendExecution, InterruptedException {
         record(1, "Spaceship", "chaseAndShoot", "%s: locked", this);
         // check lock range, chase, shoot
-        boolean foundLockedOn = false;
-        try (Element<Record<SpaceshipState>> target = global.sb.readElement(lockedOn)) {
-            final Record<SpaceshipState> lockedSpaceship;
-            if (target != null && (lockedSpaceship = target.get()) != null) {
-                foundLockedOn = true;
-
-                final AABB aabb = getAABB(lockedSpaceship);
-                // double angularDiversion = abs(atan2(lockedSpaceship.vx, lockedSpaceship.vy) - getCurrentHeading(shootTime));
-                if (inShotRange(aabb) & global.random.nextGaussian() < SHOOT_PROBABLITY) {
-                    record(1, "Spaceship", "chaseAndShoot", "%s: shootrange", this);
-                    final double range = mag(lockedSpaceship.get($x) - state.get($x), lockedSpaceship.get($y) - state.get($y));
-                    final long now = global.now();
-                    shoot(range, now);
-                    lockedSpaceship.get($spaceship).send(new Shot(state.get($x), state.get($y)));
-                }
-                if (inLockRange(aabb)) {
-                    record(1, "Spaceship", "chaseAndShoot", "%s: lockrange", this);
-                    chase(lockedSpaceship);
-                } else {
-                    record(1, "Spaceship", "chaseAndShoot", "%s: release lock", this);
-                    lockOnTarget(null);  // not in range, release lock
+        if (!readTarget()) {
+            lockOnTarget(null);
+            return;
+        }
+        getAABB(target.x, target.y, targetAABB);
+        final AABB aabb = targetAABB;
+        boolean fire = false;
+        if (inShotRange(aabb) & random.nextGaussian() < SHOOT_PROBABLITY) {
+            record(1, "Spaceship", "chaseAndShoot", "%s: shootrange", this);
+            fire = true;
+        }
+        if (inLockRange(aabb)) {
+            record(1, "Spaceship", "chaseAndShoot", "%s: lockrange", this);
+            chase(target.x, target.y);
+        } else {
+            record(1, "Spaceship", "chaseAndShoot", "%s: release lock", this);
+            lockOnTarget(null);  // not in range, release lock
+        }
+        if (fire)
+            fire(global.now());
+    }
+
+    /**
+     * Reads the position and velocity of the ship I'm locked on into {@code target}, from its snapshot if it can be
+     * read consistently, and otherwise in a transaction.
+     *
+     * @return {@code false} if the target is gone.
+     */
+    private boolean readTarget() throws SuspendExecution, InterruptedException {
+        if (lockedOnSnapshot != null && lockedOnSnapshot.readInto(target)) {
+            global.snapshotReads.inc();
+            return !target.gone;
+        }
+        global.snapshotFallbacks.inc();
+        global.spaceshipsQueries.inc();
+        try (SpatialIndex.Result rs = space.read(lockedOn)) {
+            final Record<SpaceshipState> lockedSpaceship = rs.element();
+            if (lockedSpaceship == null)
+                return false;
+            target.copy(lockedSpaceship);
+            return true;
+        }
+    }
+
+    /**
+     * Shoots straight ahead, hitting the first ship in the way (which may or may not be the target). The beam is searched
+     * a section at a time, nearest first, and the search ends with the first section holding a ship.
+     */
+    private void fire(long now) throws SuspendExecution, InterruptedException {
+        final RayCastQuery beam = shotQuery.reset(x, y, vx, vy, SHOOT_RANGE, SHOOT_ACCURACY);
+        for (double from = 0; from < SHOOT_RANGE; from += SHOOT_SECTION) {
+            global.spaceshipsQueries.inc();
+            beam.section(from, min(from + SHOOT_SECTION, SHOOT_RANGE));
+            try (SpatialIndex.Result rs = space.nearest(hitQuery.reset(x, y, 0, beam).excluding(id))) {
+                final Record<SpaceshipState> hit = rs.element();
+                if (hit != null && reallyMatches(beam, hit, now)) {
+                    shoot(mag(hit.get($x) - x, hit.get($y) - y), now);
+                    shootAt(hit);
+                    return;
                 }
             }
         }
-        if (!foundLockedOn)
-            lockOnTarget(null);
+        shoot(SHOOT_RANGE, now); // missed
     }
 
     private boolean inLockRange(AABB aabb) {
-        return new RadarQuery(state.get($x), state.get($y), state.get($vx), state.get($vy), toRadians(30), MAX_SEARCH_RANGE).queryElement(aabb, null);
+        return radarQuery.reset(x, y, vx, vy).queryElement(aabb, null);
     }
 
     private boolean inShotRange(AABB aabb) {
-        final double v = mag(state.get($vx), state.get($vy));
-        final double x2 = state.get($x) + state.get($vx) / v * SHOOT_RANGE;
-        final double y2 = state.get($y) + state.get($vy) / v * SHOOT_RANGE;
-        return (new LineDistanceQuery<Spaceship>(state.get($x) + 1, x2, state.get($y) + 1, y2, SHOOT_ACCURACY).queryElement(aabb, this));
+        return shotQuery.reset(x, y, vx, vy, SHOOT_RANGE, SHOOT_ACCURACY).queryElement(aabb, null);
     }
 
     /**
      * Accelerate toward given ship
      */
-    private void chase(Record<SpaceshipState> target) {
-        final double dx = target.get($x) - state.get($x);
-        final double dy = target.get($y) - state.get($y);
+    private void chase(double targetX, double targetY) {
+        final double dx = targetX - x;
+        final double dy = targetY - y;
         final double d = max(mag(dx, dy), MIN_PROXIMITY);
         final double udx = dx / d;
         final double udy = dy / d;
@@ -269,172 +505,383 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
 
     private void applyNeighborRejectionAndMove(final long now) throws InterruptedException, SuspendExecution {
         record(1, "Spaceship", "applyNeighborRejectionAndMove", "%s", this);
-        AABB myAABB = getAABB();
-        try (ResultSet<Record<SpaceshipState>> rs = global.sb.queryForUpdate(
-                SpatialQueries.range(myAABB, global.range),
-                SpatialQueries.equals(state, myAABB), false)) {
-
-//            Scheduler.Job j = rs.getAsyncOp().getJob();
-//            if(j == null)
-//                Debug.exit(1);
-            assert rs.getResultForUpdate().size() == 1;
-            ElementUpdater<Record<SpaceshipState>> updater = rs.getResultForUpdate().iterator().next();
-            assert updater.elem().equals(state); // this is me
-
-            applyNeighborRejection(rs.getResultReadOnly(), now);
-
-            move(now);
-            state.set($status, status);
-            state.set($timeFired, timeFired);
-            state.set($shotLength, shotLength);
-            state.set($exVelocityUpdated, exVelocityUpdated);
-
-            updater.update(getAABB());
+        neighborsInRange = false;
+        if (global.deadReckoning())
+            applyNeighborRejectionAndDeadReckon(now);
+        else if (commitSlot != null) {
+            // my neighbors are only read; the committer writes my record and moves me later
+            readNeighborsAndApplyRejection(now);
+            final boolean moved = moveAndStage(now);
+            snapshot.publish(state);
+            global.committer.stage(commitSlot, state, moved ? newAABB : null);
+            if (moved)
+                copy(newAABB, myAABB);
+        } else if (global.pairwise != null) {
+            try (SpatialIndex.Result up = space.update(state.get($token))) {
+                applyPairwiseRejection();
+                moveAndUpdate(up, now);
+            }
+        } else if (neighbors == null) {
+            global.spaceshipsQueries.inc();
+            try (SpatialIndex.Result rs = space.queryForUpdate(neighborQuery.reset(x, y, global.range + global.indexSlack), state, myAABB)) {
+                applyNeighborRejection(rs.elements(), now);
+                moveAndUpdate(rs, now);
+            }
+        } else if (neighbors.isStale(x, y, now)) {
+            global.spaceshipsQueries.inc();
+            global.neighborListRebuilds.inc();
+            try (SpatialIndex.Result rs = space.queryForUpdate(neighborQuery.reset(x, y, neighbors.radius(global.range) + global.indexSlack), state, myAABB)) {
+                neighbors.rebuild(rs.elements(), id, x, y, now);
+                applyNeighborRejection(neighbors, now);
+                moveAndUpdate(rs, now);
+            }
+        } else {
+            global.neighborListHits.inc();
+            try (SpatialIndex.Result up = space.update(state.get($token))) {
+                applyNeighborRejection(neighbors, now);
+                moveAndUpdate(up, now);
+            }
         }
         reduceExternalVelocity(now);
     }
 
-    // called in a transaction
-    private void applyNeighborRejection(Set<Record<SpaceshipState>> neighbors, long currentTime) {
+    /**
+     * Like applyNeighborRejectionAndMove, but with dead reckoning: my neighbors are only read, and my record and bounds
+     * are updated only when my published trajectory has strayed too far from where I really am.
+     */
+    private void applyNeighborRejectionAndDeadReckon(final long now) throws InterruptedException, SuspendExecution {
+        readNeighborsAndApplyRejection(now);
+        final boolean moved = moveAndStage(now);
+        snapshot.publish(state);
+        if (mustPublish(now)) {
+            try (SpatialIndex.Result up = space.update(state.get($token))) {
+                copyState(state, published);
+                if (moved)
+                    updateBounds(up);
+            }
+            global.deadReckoningCommits.inc();
+        }
+    }
+
+    /**
+     * Queries my neighbors (or uses my neighbor list, or the pairwise pass) without locking myself for update, and accelerates away from
+     * them.
+     */
+    private void readNeighborsAndApplyRejection(final long now) throws InterruptedException, SuspendExecution {
+        final double slack = global.indexSlack; // how far others may be from their bounds in the index
+        if (global.pairwise != null)
+            applyPairwiseRejection();
+        else if (neighbors == null) {
+            global.spaceshipsQueries.inc();
+            try (SpatialIndex.Result rs = space.query(neighborQuery.reset(x, y, global.range + slack))) {
+                applyNeighborRejection(rs.elements(), now);
+            }
+        } else if (neighbors.isStale(x, y, now)) {
+            global.spaceshipsQueries.inc();
+            global.neighborListRebuilds.inc();
+            try (SpatialIndex.Result rs = space.query(neighborQuery.reset(x, y, neighbors.radius(global.range) + slack))) {
+                neighbors.rebuild(rs.elements(), id, x, y, now);
+            }
+            applyNeighborRejection(neighbors, now);
+        } else {
+            global.neighborListHits.inc();
+            applyNeighborRejection(neighbors, now);
+        }
+    }
+
+    /**
+     * Whether others' extrapolation of my published trajectory to the current time is too far from where I really am,
+     * or from where the index has me, or my published state is too old, or it misses a shot I've fired.
+     */
+    private boolean mustPublish(long now) {
+        if (now - published.get($lastMoved) >= global.deadReckoningMaxStaleness || published.get($timeFired) != timeFired)
+            return true;
+        final double px = currentX(published, now);
+        final double py = currentY(published, now);
+        return mag2(px - x, py - y) > global.deadReckoningError * global.deadReckoningError
+                || mag2(px - published.get($x), py - published.get($y)) > global.deadReckoningDrift * global.deadReckoningDrift;
+    }
+
+    // called in a transaction that updates me
+    private void moveAndUpdate(SpatialIndex.Result me, long now) {
+        if (moveAndStage(now))
+            updateBounds(me);
+        snapshot.publish(state);
+    }
+
+    /**
+     * Moves me to newAABB in the index.
+     */
+    private void updateBounds(SpatialIndex.Result me) {
+        me.update(newAABB); // newAABB is not touched again before the transaction completes
+        copy(newAABB, myAABB);
+    }
+
+    /**
+     * Stops the group committer from writing my record, so that I can write it myself. Must not be called in a
+     * transaction.
+     */
+    private void stopCommits() {
+        if (commitSlot != null)
+            global.committer.remove(commitSlot);
+    }
+
+    /**
+     * Moves me, and puts my new bounds in newAABB.
+     *
+     * @return {@code false} if my bounds in the index needn't change
+     */
+    private boolean moveAndStage(long now) {
+        applyBlasts(now);
+
+        move(now);
+        flush();
+
+        if (global.fatMargin > 0 && myAABB.min(X) <= x & x <= myAABB.max(X) & myAABB.min(Y) <= y & y <= myAABB.max(Y)) {
+            global.boundsUpdatesSkipped.inc(); // I'm still inside my fat bounds
+            return false;
+        }
+        getIndexBounds(x, y, newAABB);
+        return true;
+    }
+
+    /**
+     * Accelerate away from the ships that have exploded nearby since the last tick.
+     */
+    private void applyBlasts(long now) {
+        global.blasts.collect(blasts, x, y, now);
+        if (blasts.count > 0) {
+            reduceExternalVelocity(now);
+            exVx += blasts.dvx;
+            exVy += blasts.dvy;
+            this.exVelocityUpdated = now;
+        }
+    }
+
+    // called in a transaction (package-private for benchmarks)
+    void applyNeighborRejection(Collection<Record<SpaceshipState>> neighbors, long currentTime) {
         final int n = neighbors.size();
 
-        state.set($ax, chaseAx);
-        state.set($ay, chaseAy);
+        ax = chaseAx;
+        ay = chaseAy;
 
-        if (n > 1) {
+        if (global.indexSlack > 0) {
+            // the query was widened, as ships may be away from their bounds in the index, so check where they really are
+            final double range2 = global.range * global.range;
+            int falsePositives = 0;
+            for (Record<SpaceshipState> s : neighbors) {
+                if (s.get($id) == id) // the index hands me a wrapper of my record, not the record itself
+                    continue;
+                final double dx = positionX(s, currentTime) - x;
+                final double dy = positionY(s, currentTime) - y;
+                if (mag2(dx, dy) <= range2)
+                    reject(dx, dy);
+                else
+                    falsePositives++;
+            }
+            global.checkedQueries.inc();
+            global.falsePositives.add(falsePositives);
+        } else if (n > 1) {
             for (Record<SpaceshipState> s : neighbors) {
-                if (s == this.state)
+                if (s.get($id) == id)
                     continue;
+                reject(s.get($x) - x, s.get($y) - y);
+            }
+        }
+    }
 
-                assert !Double.isNaN(state.get($x) + state.get($y));
+    // called in a transaction
+    private void applyNeighborRejection(NeighborList neighbors, long currentTime) {
+        ax = chaseAx;
+        ay = chaseAy;
+
+        final double range2 = global.range * global.range;
+        for (int i = 0; i < neighbors.size(); i++) {
+            final double dx = neighbors.x(i, currentTime) - x;
+            final double dy = neighbors.y(i, currentTime) - y;
+            if (mag2(dx, dy) <= range2) // the list also holds the ships in the skin
+                reject(dx, dy);
+        }
+    }
 
-                final double dx = s.get($x) - state.get($x);
-                final double dy = s.get($y) - state.get($y);
-                final double d = max(mag(dx, dy), MIN_PROXIMITY);
+    /**
+     * Accelerate away from my neighbors as computed for me by the last pairwise pass; no need to query them.
+     */
+    private void applyPairwiseRejection() {
+        double pax, pay;
+        for (;;) {
+            final PairwiseRejection.Accelerations pass = global.pairwise.last(); // read once, so both come from the same pass
+            final long stamp = pass.tryRead();
+            pax = pass.ax[id];
+            pay = pass.ay[id];
+            if (pass.validate(stamp))
+                break;
+        }
+        ax = chaseAx + pax;
+        ay = chaseAy + pay;
+        neighborsInRange = pax != 0 | pay != 0;
+    }
 
-                final double udx = dx / d;
-                final double udy = dy / d;
+    /**
+     * Accelerate away from a neighbor at the given offset from me.
+     */
+    private void reject(double dx, double dy) {
+        assert !Double.isNaN(x + y);
 
-                final double rejection = min(REJECTION_COEFF / (d * d), 250);
+        final double rejection = rejectionPerDistance(dx, dy);
+        neighborsInRange = true;
 
-                state.set($ax, state.get($ax) - rejection * udx);
-                state.set($ay, state.get($ay) - rejection * udy);
+        ax -= rejection * dx;
+        ay -= rejection * dy;
 
-                assert !Double.isNaN(state.get($ax) + state.get($ay));
-            }
-        }
+        assert !Double.isNaN(ax + ay);
     }
 
     /**
      * Update ship position
      */
-    private void move(long now) {
+    void move(long now) {
         assert status == Status.ALIVE;
 
-        state.set($exVx, exVx);
-        state.set($exVy, exVy);
-
-        final long lastMoved = state.get($lastMoved);
-
         if (lastMoved > 0 & now > lastMoved) {
-            double x = state.get($x);
-            double y = state.get($y);
-            double vx = state.get($vx);
-            double vy = state.get($vy);
-            double ax = state.get($ax);
-            double ay = state.get($ay);
-
             final AABB bounds = global.bounds;
-            final double duration = (double) (now - lastMoved) / TimeUnit.SECONDS.toMillis(1);
-            final double duration2 = duration * duration;// * Math.signum(duration);
+            final double duration = seconds(now - lastMoved);
 
-            x = x + (vx + exVx) * duration + ax * duration2 / 2.0;
-            y = y + (vy + exVy) * duration + ay * duration2 / 2.0;
+            x = displace(x, vx, exVx, ax, duration);
+            y = displace(y, vy, exVy, ay, duration);
 
-            vx = vx + ax * duration;
-            vy = vy + ay * duration;
+            vx = accelerate(vx, ax, duration);
+            vy = accelerate(vy, ay, duration);
 
-            // before limitSpeed
-            state.set($vx, vx);
-            state.set($vy, vy);
             limitSpeed();
-            vx = state.get($vx);
-            vy = state.get($vy);
 
             assert !Double.isNaN(vx + vy);
 
-            if (x > bounds.max(X) || x < bounds.min(X)) {
-                x = min(x, bounds.max(X));
-                x = max(x, bounds.min(X));
-                vx = -vx * SPEED_BOUNCE_DAMPING;
+            if (outOfBounds(x, bounds.min(X), bounds.max(X))) {
+                x = confine(x, bounds.min(X), bounds.max(X));
+                vx = bounce(vx);
                 ax = 0;
             }
-            if (y > bounds.max(Y) || y < bounds.min(Y)) {
-                y = min(y, bounds.max(Y));
-                y = max(y, bounds.min(Y));
-                vy = -vy * SPEED_BOUNCE_DAMPING;
+            if (outOfBounds(y, bounds.min(Y), bounds.max(Y))) {
+                y = confine(y, bounds.min(Y), bounds.max(Y));
+                vy = bounce(vy);
                 ay = 0;
             }
 
             assert !Double.isNaN(x + y);
-
-            state.set($x, x);
-            state.set($y, y);
-            state.set($vx, vx);
-            state.set($vy, vy);
-            state.set($ax, ax);
-            state.set($ay, ay);
         }
-        state.set($lastMoved, now);
+        lastMoved = now;
+    }
+
+    /**
+     * Writes my state to my record
+     */
+    void flush() {
+        flush(state);
+    }
+
+    /**
+     * Writes my state to the given record (package-private for benchmarks)
+     */
+    void flush(Record<SpaceshipState> s) {
+        s.set($x, x);
+        s.set($y, y);
+        s.set($vx, vx);
+        s.set($vy, vy);
+        s.set($ax, ax);
+        s.set($ay, ay);
+        s.set($exVx, exVx);
+        s.set($exVy, exVy);
+        s.set($lastMoved, lastMoved);
+        s.set($status, status);
+        s.set($timeFired, timeFired);
+        s.set($shotLength, shotLength);
+        s.set($exVelocityUpdated, exVelocityUpdated);
     }
 
     /**
-     * I've been shot!
+     * Copies the fields {@link #flush(Record) flush} writes from one record to another
+     */
+    static void copyFlushed(Record<SpaceshipState> from, Record<SpaceshipState> to) {
+        to.set($x, from.get($x));
+        to.set($y, from.get($y));
+        to.set($vx, from.get($vx));
+        to.set($vy, from.get($vy));
+        to.set($ax, from.get($ax));
+        to.set($ay, from.get($ay));
+        to.set($exVx, from.get($exVx));
+        to.set($exVy, from.get($exVy));
+        to.set($lastMoved, from.get($lastMoved));
+        to.set($status, from.get($status));
+        to.set($timeFired, from.get($timeFired));
+        to.set($shotLength, from.get($shotLength));
+        to.set($exVelocityUpdated, from.get($exVelocityUpdated));
+    }
+
+    /**
+     * Hits the given ship, pushing it away from me.
      *
-     * @param global
-     * @param shooter
+     * The target's impulse mailbox (like its actor ref) is a transient field of its record, which isn't replicated to
+     * other Galaxy nodes, so a ship owned by another node can't be hit, and neither can a preloaded ship that hasn't
+     * started yet. Such shots are dropped, and counted.
      */
-    private boolean shot(long now, double shooterX, double shooterY) throws SuspendExecution, InterruptedException {
-        record(1, "Spaceship", "shot", "%s: shot", this);
-        timesHit++;
-        timeHit = now;
-        if (timesHit < TIMES_HIT_TO_BLOW) {
-            final double dx = shooterX - state.get($x);
-            final double dy = shooterY - state.get($y);
-            final double d = max(mag(dx, dy), MIN_PROXIMITY);
-            final double udx = dx / d;
-            final double udy = dy / d;
+    private void shootAt(Record<SpaceshipState> target) throws SuspendExecution {
+        final double dx = x - target.get($x);
+        final double dy = y - target.get($y);
+        final double d = max(mag(dx, dy), MIN_PROXIMITY);
+        final ImpulseMailbox mailbox = target.get($impulses);
+        if (mailbox == null) {
+            global.shotsDropped.inc();
+            return;
+        }
+        mailbox.push(HIT_RECOIL_VELOCITY * dx / d, HIT_RECOIL_VELOCITY * dy / d, 1);
+    }
 
+    /**
+     * I've been shot (perhaps many times over).
+     */
+    private void impulses(long now) throws SuspendExecution, InterruptedException {
+        impulses.take();
+        if (impulses.takenHits > 0) {
+            record(1, "Spaceship", "impulses", "%s: shot", this);
+            timesHit += impulses.takenHits;
+            timeHit = now;
+        }
+        if (status != Status.ALIVE)
+            return;
+        if (timesHit < TIMES_HIT_TO_BLOW) {
             reduceExternalVelocity(now);
-            exVx += HIT_RECOIL_VELOCITY * udx;
-            exVy += HIT_RECOIL_VELOCITY * udy;
+            exVx += impulses.takenDvx;
+            exVy += impulses.takenDvy;
             this.exVelocityUpdated = now;
-            return false;
-        } else if (status == Status.ALIVE) {
-            // System.out.println("BOOM: " + this);
-            record(1, "Spaceship", "shot", "%s: BOOM", this);
-            // I'm dead: blow up. The explosion pushes away all nearby ships.
-            try (ResultSet<Record<SpaceshipState>> rs = global.sb.query(SpatialQueries.range(getAABB(), BLAST_RANGE))) {
-                final Blast blastMessage = new Blast(now(), state.get($x), state.get($y));
-                for (Record<SpaceshipState> s : rs.getResultReadOnly())
-                    s.get($spaceship).send(blastMessage);
-            }
-            this.status = Status.BLOWING_UP;
-            try (ElementUpdater1<Record<SpaceshipState>> up = global.sb.update(state.get($token))) {
-                state.set($status, Status.BLOWING_UP);
-                state.set($vx, 0.0);
-                state.set($vy, 0.0);
-                state.set($exVx, 0.0);
-                state.set($exVy, 0.0);
-                state.set($ax, 0.0);
-                state.set($ay, 0.0);
-                state.set($blowTime, now);
-            }
+        } else
+            blowUp(now);
+    }
 
-            delay(now, BLOW_TILL_DELETE_DURATION, TimeUnit.MILLISECONDS, () -> status = Status.GONE);
-            return true;
+    private void blowUp(long now) throws SuspendExecution, InterruptedException {
+        // System.out.println("BOOM: " + this);
+        record(1, "Spaceship", "blowUp", "%s: BOOM", this);
+        // I'm dead: blow up. The explosion pushes away all nearby ships when they next move.
+        global.blasts.publish(x, y);
+        this.status = Status.BLOWING_UP;
+        this.vx = 0;
+        this.vy = 0;
+        this.exVx = 0;
+        this.exVy = 0;
+        this.ax = 0;
+        this.ay = 0;
+        stopCommits();
+        try (SpatialIndex.Result up = space.update(state.get($token))) {
+            flush();
+            state.set($blowTime, now);
+            snapshot.publish(state);
+            if (published != state)
+                copyState(state, published);
+            if (commitSlot != null)
+                up.update(myAABB); // where I last staged myself
         }
-        return false;
+
+        delay(now, BLOW_TILL_DELETE_DURATION, TimeUnit.MILLISECONDS, () -> status = Status.GONE);
     }
 
     private boolean isLockedOnTarget() {
@@ -442,10 +889,13 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
     }
 
     private void lockOnTarget(Record<SpaceshipState> target) {
-        if (target != null)
+        if (target != null) {
             lockedOn = target.get($token);
-        else
+            lockedOnSnapshot = target.get($snapshot);
+        } else {
             lockedOn = null;
+            lockedOnSnapshot = null;
+        }
         chaseAx = 0;
         chaseAy = 0;
     }
@@ -455,169 +905,271 @@ public class Spaceship extends BasicActor<Spaceship.SpaceshipMessage, Void> {
         shotLength = range;
     }
 
+    private void setVelocityDir(double direction, double speed) {
+        this.vx = speed * cos(direction);
+        this.vy = speed * sin(direction);
+        limitSpeed();
+    }
+
+    void limitSpeed() {
+        final double f = speedLimitFactor(vx, vy);
+        vx *= f;
+        vy *= f;
+    }
+
+    // package-private for benchmarks
+    void reduceExternalVelocity(long currentTime) {
+        exVx = decayExternalVelocity(exVx, exVelocityUpdated, currentTime);
+        exVy = decayExternalVelocity(exVy, exVelocityUpdated, currentTime);
+        exVelocityUpdated = currentTime;
+    }
+
+    static double mag(double x, double y) {
+        return sqrt(mag2(x, y));
+    }
+
+    static double mag2(double x, double y) {
+        return x * x + y * y;
+    }
+
+    // physics shared with SoaEngine (and the hibernator and pairwise pass); vectors are passed one axis at a time
     /**
-     * A nearby ship has exploded, accelerate away in the blast.
+     * The magnitude of the acceleration away from a neighbor at distance {@code d}
      */
-    private void blast(long now, double explosionX, double explosionY) {
-        final double dx = explosionX - state.get($x);
-        final double dy = explosionY - state.get($y);
-        final double d = mag(dx, dy);
-        if (d < MIN_PROXIMITY)
-            return;
-        final double udx = dx / d;
-        final double udy = dy / d;
+    static double rejection(double d) {
+        return min(REJECTION_COEFF / (d * d), 250);
+    }
 
-        double hitRecoil = 0.25 * d - 200;
+    /**
+     * The acceleration away from a neighbor at offset {@code (dx, dy)}, divided by its distance, so that the
+     * acceleration is {@code -r * dx, -r * dy}
+     */
+    static double rejectionPerDistance(double dx, double dy) {
+        final double d = max(mag(dx, dy), MIN_PROXIMITY);
+        return rejection(d) / d;
+    }
 
-        reduceExternalVelocity(now);
-        exVx += hitRecoil * udx;
-        exVy += hitRecoil * udy;
-        this.exVelocityUpdated = now;
+    static double seconds(long millis) {
+        return (double) millis / TimeUnit.SECONDS.toMillis(1);
     }
 
-    private void setVelocityDir(double direction, double speed) {
-        state.set($vx, speed * cos(direction));
-        state.set($vy, speed * sin(direction));
-        limitSpeed();
+    /**
+     * The position, along one axis, after {@code duration} seconds of a ship at {@code p}, with thruster velocity
+     * {@code v}, external velocity {@code exV} and acceleration {@code a}
+     */
+    static double displace(double p, double v, double exV, double a, double duration) {
+        return p + (v + exV) * duration + a * duration * duration / 2.0;
     }
 
-    private void limitSpeed() {
-        final double vx = state.get($vx);
-        final double vy = state.get($vy);
+    /**
+     * The thruster velocity, along one axis, after accelerating at {@code a} for {@code duration} seconds
+     */
+    static double accelerate(double v, double a, double duration) {
+        return v + a * duration;
+    }
 
+    /**
+     * The factor by which a velocity must be multiplied to keep it within the speed limit
+     */
+    static double speedLimitFactor(double vx, double vy) {
         final double speed = mag(vx, vy);
-        if (speed > SPEED_LIMIT) {
-            state.set($vx, vx / speed * SPEED_LIMIT);
-            state.set($vy, vy / speed * SPEED_LIMIT);
-        }
+        return speed > SPEED_LIMIT ? SPEED_LIMIT / speed : 1.0;
     }
 
-    private void reduceExternalVelocity(long currentTime) {
-        double duration = (double) (currentTime - exVelocityUpdated) / TimeUnit.SECONDS.toMillis(1);
-        if (exVelocityUpdated > 0 & duration > 0) {
-            exVx /= (1 + 8 * duration);
-            exVy /= (1 + 8 * duration);
-        }
-        exVelocityUpdated = currentTime;
+    /**
+     * Whether a position, along one axis, is outside the world's {@code [min, max]} along it, and must bounce
+     */
+    static boolean outOfBounds(double p, double min, double max) {
+        return p > max || p < min;
     }
 
-    private double mag(double x, double y) {
-        return sqrt(mag2(x, y));
+    static double confine(double p, double min, double max) {
+        return max(min(p, max), min);
     }
 
-    private double mag2(double x, double y) {
-        return x * x + y * y;
+    /**
+     * The velocity, along one axis, after bouncing off the world's edge across it
+     */
+    static double bounce(double v) {
+        return -v * SPEED_BOUNCE_DAMPING;
+    }
+
+    /**
+     * An external velocity component, last updated at {@code updated}, decayed until {@code now}
+     */
+    static double decayExternalVelocity(double exV, long updated, long now) {
+        final double duration = seconds(now - updated);
+        return updated > 0 & duration > 0 ? exV / externalVelocityDecay(duration) : exV;
+    }
+
+    /**
+     * The velocity gained (negative - away from the explosion) by a ship at distance {@code d} from an explosion
+     */
+    static double blastRecoil(double d) {
+        return 0.25 * d - 200;
+    }
+
+    /**
+     * The factor by which the external velocity is divided after {@code duration} seconds
+     */
+    static double externalVelocityDecay(double duration) {
+        return 1 + 8 * duration;
     }
 
     private long now() {
         return global.now();
     }
 
+    /**
+     * Schedules the next tick a period after the previous one, skipping missed ticks, so that the ship keeps its phase.
+     */
+    private void scheduleTick(long now) {
+        nextTick += MIN_PERIOD_MILLIS;
+        if (nextTick <= now)
+            nextTick += (now - nextTick) / MIN_PERIOD_MILLIS * MIN_PERIOD_MILLIS + MIN_PERIOD_MILLIS;
+        global.scheduler.schedule(tickTimer, nextTick);
+    }
+
     private void delay(long now, long delay, TimeUnit unit, final Runnable command) {
-        delayQueue.add(new DelayedRunnable(now + unit.toMillis(delay)) {
+        global.scheduler.schedule(new TickScheduler.Timer<SpaceshipMessage>(ref(), new DelayedRunnable() {
             @Override
             public void run() {
                 command.run();
             }
-        });
+        }), now + unit.toMillis(delay));
     }
 
-    private void runDelayed(long now) {
-        for (;;) {
-            DelayedRunnable command = delayQueue.peek();
-            if (command != null && command.time <= now) {
-                delayQueue.poll();
-                command.run();
-            } else
-                break;
-        }
+    private AABB getAABB() {
+        final MutableAABB aabb = AABB.create(2);
+        getIndexBounds(x, y, aabb);
+        return aabb;
     }
 
-    private long nextActionTime() {
-        DelayedRunnable command = delayQueue.peek();
-        return command != null ? command.time : Long.MAX_VALUE;
+    /**
+     * A ship's position, as others see it (must be called in a transaction)
+     */
+    private double positionX(Record<SpaceshipState> s, long now) {
+        return global.deadReckoning() ? currentX(s, now) : s.get($x);
     }
 
-    private AABB getAABB() {
-        return getAABB(state);
+    private double positionY(Record<SpaceshipState> s, long now) {
+        return global.deadReckoning() ? currentY(s, now) : s.get($y);
     }
 
-    private static AABB getAABB(Record<SpaceshipState> state) {
-        final MutableAABB aabb = AABB.create(2);
-        getAABB(state, aabb);
-        return aabb;
+    /**
+     * Whether a ship found by a query, which tested the ship's bounds in the index, is really where the query looks
+     * (must be called in the query's transaction).
+     */
+    private boolean reallyMatches(BoundedSpatialQuery<Object> query, Record<SpaceshipState> s, long now) {
+        if (global.indexSlack == 0)
+            return true;
+        getAABB(positionX(s, now), positionY(s, now), checkAABB);
+        global.checkedQueries.inc();
+        if (query.queryElement(checkAABB, s))
+            return true;
+        global.falsePositives.inc();
+        return false;
     }
 
-    private static void getAABB(Record<SpaceshipState> state, MutableAABB aabb) {
-        final double _x = state.get($x);
-        final double _y = state.get($y);
-        aabb.min(X, _x);
-        aabb.max(X, _x);
-        aabb.min(Y, _y);
-        aabb.max(Y, _y);
+    /**
+     * The bounds I'm put in the index with when I'm at the given position
+     */
+    private void getIndexBounds(double x, double y, MutableAABB aabb) {
+        final double margin = global.fatMargin;
+        aabb.min(X, x - margin);
+        aabb.max(X, x + margin);
+        aabb.min(Y, y - margin);
+        aabb.max(Y, y + margin);
     }
 
-    public static class SpaceshipMessage {
+    private static void copy(AABB from, MutableAABB to) {
+        to.min(X, from.min(X));
+        to.max(X, from.max(X));
+        to.min(Y, from.min(Y));
+        to.max(Y, from.max(Y));
     }
 
-    static class Shot extends SpaceshipMessage {
-        final double x;
-        final double y;
-
-        public Shot(double x, double y) {
-            this.x = x;
-            this.y = y;
-        }
+    private static Record<SpaceshipState> newState(Spaceships global) {
+        return global.compactState ? new CompactShipRecord() : SpaceshipState.stateType.newInstance();
     }
 
-    static class Blast extends SpaceshipMessage {
-        final long time;
-        final double x;
-        final double y;
-
-        public Blast(long time, double x, double y) {
-            this.time = time;
-            this.x = x;
-            this.y = y;
-        }
+    private static void copyState(Record<SpaceshipState> from, Record<SpaceshipState> to) {
+        to.set($id, from.get($id));
+        to.set($lastMoved, from.get($lastMoved));
+        to.set($timeFired, from.get($timeFired));
+        to.set($blowTime, from.get($blowTime));
+        to.set($exVelocityUpdated, from.get($exVelocityUpdated));
+        to.set($shotLength, from.get($shotLength));
+        to.set($x, from.get($x));
+        to.set($y, from.get($y));
+        to.set($vx, from.get($vx));
+        to.set($vy, from.get($vy));
+        to.set($ax, from.get($ax));
+        to.set($ay, from.get($ay));
+        to.set($exVx, from.get($exVx));
+        to.set($exVy, from.get($exVy));
+        to.set($status, from.get($status));
+        to.set($token, from.get($token));
+        to.set($spaceship, from.get($spaceship));
+        to.set($impulses, from.get($impulses));
+        to.set($snapshot, from.get($snapshot));
     }
 
-    static abstract class DelayedRunnable implements Runnable, Comparable<DelayedRunnable> {
-        final long time;
+    int id() {
+        return id;
+    }
 
-        public DelayedRunnable(long time) {
-            this.time = time;
-        }
+    /**
+     * The region I'm in. Must not be called once I've been started, except by me.
+     */
+    int region() {
+        return global.regions.region(x, y);
+    }
 
-        @Override
-        public int compareTo(DelayedRunnable o) {
-            return Long.signum(this.time - o.time);
-        }
+    /**
+     * The ship's initial state, for adding it to the index before it's started. Must not be called once it has been.
+     */
+    Record<SpaceshipState> initialState() {
+        return state;
     }
 
-    //////////////////////////
-    public static void getCurrentLocation(Record<SpaceshipState> s, long currentTime, FloatBuffer buffer) {
-        double dt = (double) (currentTime - s.get($lastMoved)) / TimeUnit.SECONDS.toMillis(1);
-        double dext = (double) (currentTime - s.get($exVelocityUpdated)) / TimeUnit.SECONDS.toMillis(1);
+    AABB initialBounds() {
+        return getAABB();
+    }
 
-        double currentX = s.get($x);
-        double currentY = s.get($y);
+    private static void getAABB(double x, double y, MutableAABB aabb) {
+        aabb.min(X, x);
+        aabb.max(X, x);
+        aabb.min(Y, y);
+        aabb.max(Y, y);
+    }
 
-        double exVx = s.get($exVx);
-        double exVy = s.get($exVy);
+    public static class SpaceshipMessage {
+    }
 
-        if (s.get($exVelocityUpdated) > 0 & dext > 0) {
-            exVx /= (1 + 8 * dext);
-            exVy /= (1 + 8 * dext);
-        }
+    /**
+     * An action the ship sends itself through the tick scheduler
+     */
+    static abstract class DelayedRunnable extends SpaceshipMessage implements Runnable {
+    }
 
-        final double dt2 = dt * dt;
+    //////////////////////////
+    public static void getCurrentLocation(Record<SpaceshipState> s, long currentTime, FloatBuffer buffer) {
+        buffer.put((float) currentX(s, currentTime));
+        buffer.put((float) currentY(s, currentTime));
+    }
 
-        currentX = currentX + (s.get($vx) + exVx) * dt + s.get($ax) * dt2 / 2.0;
-        currentY = currentY + (s.get($vy) + exVy) * dt + s.get($ay) * dt2 / 2.0;
+    /**
+     * Extrapolates a ship's position from its record (which must be read in a transaction, unless it's mine)
+     */
+    static double currentX(Record<SpaceshipState> s, long currentTime) {
+        final double dt = seconds(currentTime - s.get($lastMoved));
+        return displace(s.get($x), s.get($vx), decayExternalVelocity(s.get($exVx), s.get($exVelocityUpdated), currentTime), s.get($ax), dt);
+    }
 
-        buffer.put((float) currentX);
-        buffer.put((float) currentY);
+    static double currentY(Record<SpaceshipState> s, long currentTime) {
+        final double dt = seconds(currentTime - s.get($lastMoved));
+        return displace(s.get($y), s.get($vy), decayExternalVelocity(s.get($exVy), s.get($exVelocityUpdated), currentTime), s.get($ay), dt);
     }
 
     public static double getCurrentHeading(Record<SpaceshipState> s, long currentTime) {
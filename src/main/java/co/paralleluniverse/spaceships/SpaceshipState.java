@@ -52,6 +52,8 @@ public final class SpaceshipState {
     public static final ObjectField<SpaceshipState, Spaceship.Status> $status = stateType.objectField("status", Spaceship.Status.class);
     public static final ObjectField<SpaceshipState, SpatialToken> $token = stateType.objectField("token", SpatialToken.class, Field.TRANSIENT);
     public static final ObjectField<SpaceshipState, ActorRef<Spaceship.SpaceshipMessage>> $spaceship = stateType.objectField("spaceship", new TypeToken<ActorRef<Spaceship.SpaceshipMessage>>() {}, Field.TRANSIENT);
+    static final ObjectField<SpaceshipState, ImpulseMailbox> $impulses = stateType.objectField("impulses", ImpulseMailbox.class, Field.TRANSIENT);
+    static final ObjectField<SpaceshipState, ShipSnapshot> $snapshot = stateType.objectField("snapshot", ShipSnapshot.class, Field.TRANSIENT);
 
     private SpaceshipState() {
     }
@@ -20,7 +20,7 @@
 package co.paralleluniverse.spaceships;
 
 import co.paralleluniverse.actors.Actor;
-import co.paralleluniverse.actors.ActorSpec;
+import co.paralleluniverse.actors.ActorBuilder;
 import co.paralleluniverse.actors.behaviors.Supervisor;
 import co.paralleluniverse.actors.behaviors.SupervisorActor;
 import co.paralleluniverse.common.monitoring.Counter;
@@ -38,21 +38,29 @@ import co.paralleluniverse.spacebase.quasar.SpaceBaseBuilder;
 import static co.paralleluniverse.spaceships.SpaceshipState.$spaceship;
 import co.paralleluniverse.spaceships.render.GLPort;
 import co.paralleluniverse.strands.concurrent.Phaser;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.UniformReservoir;
 import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.InputStreamReader;
 import java.io.PrintStream;
+import java.util.Date;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntFunction;
+import java.util.stream.IntStream;
 
 public class Spaceships {
     public static Spaceships spaceships;
     public static final int POSTPONE_GLPORT_UNTIL_SB_CYCLE_UNDER_X_MILLIS = 250;
 
     /**
-     * @param args the command line arguments
+     * @param args the Galaxy node id (optional), followed by any number of {@code key=value} overrides of
+     *             spaceships.properties
      */
     public static void main(String[] args) throws Exception {
         System.out.println("COMPILER: " + System.getProperty("java.vm.name"));
@@ -63,11 +71,19 @@ public class Spaceships {
 
         Properties props = new Properties();
         props.load(new InputStreamReader(ClassLoader.getSystemResourceAsStream("spaceships.properties")));
+        int argNode = -1;
+        for (String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (eq > 0)
+                props.setProperty(arg.substring(0, eq), arg.substring(eq + 1));
+            else
+                argNode = Integer.parseInt(arg);
+        }
 
         Metrics.register("cpu", new CpuUsageGaugeSet());
         Metrics.register("memory", new MemoryUsageGaugeSet());
         
-        int glxNode = args.length > 0 ? Integer.parseInt(args[0]) : -1;
+        int glxNode = argNode;
         if (glxNode < 0)
             glxNode = Integer.parseInt(props.getProperty("galaxy.nodeId", "-1"));
 
@@ -90,27 +106,80 @@ public class Spaceships {
         System.out.println("Running...");
         spaceships.run();
 
+        if (spaceships.toolkit == GLPort.Toolkit.NONE)
+            System.exit(spaceships.benchmarkPassed ? 0 : 1);
         Thread.sleep(100000);
     }
     //
     private final int glxNode;
     private final GLPort.Toolkit toolkit;
-    public final SpaceBase<Record<SpaceshipState>> sb;
+    private final Properties props;
+    public final SpatialIndex index;
     private GLPort port = null;
-    public final RandSpatial random;
+    public final RandSpatial random; // the master stream; strands should use their own split() of it
     //
     private final int N;
     public final AABB bounds;
     public final boolean extrapolate;
     public final double speedVariance;
     public final double range;
-    private final Phaser phaser;
+    final double neighborSkin;
+    final double deadReckoningError; // 0 if ships publish every move
+    final long deadReckoningMaxStaleness;
+    final double deadReckoningDrift; // how far a ship's published trajectory may take it from its bounds in the index
+    final double fatMargin; // how far a ship's bounds in the index extend around it; 0 - ships are indexed as points
+    final double indexSlack; // how far a ship may be from (the center of) its bounds in the index
+    private final boolean soa;
+    private final boolean fastStart;
+    private final int supervisorFanOut; // ships per shard supervisor
+    final boolean compactState;
+    private final Phaser phaser; // the root of the phaser tree
+    private final Phaser[] phasers; // the leaves of the phaser tree, which ships register with
+    private final int phaserFanOut;
+    final TickScheduler scheduler;
+    final BlastField blasts;
+    final GroupCommitter committer; // null if ships commit their own moves
+    final PairwiseRejection pairwise; // null if ships query their own neighbors
+    final Hibernator hibernator; // null if ships don't hibernate
+    final RegionSchedulers regions; // null if all ships run on the default scheduler
+    final Shards shards; // null if ships are only started by their shards
     private File metricsDir;
     private PrintStream configStream;
     private PrintStream timeStream;
     final Counter spaceshipsCycles = new Counter();
+    final Counter spaceshipsQueries = new Counter();
+    final Counter neighborListHits = new Counter();
+    final Counter neighborListRebuilds = new Counter();
+    final Counter snapshotReads = new Counter();
+    final Counter snapshotFallbacks = new Counter(); // snapshot reads that had to fall back to a transaction
+    final Counter deadReckoningCommits = new Counter();
+    final Counter boundsUpdatesSkipped = new Counter(); // moves that stayed inside the ship's fat bounds
+    final Counter checkedQueries = new Counter(); // query results checked against ships' exact positions
+    final Counter falsePositives = new Counter(); // ships found by a query that weren't really where it looked
+    final Counter pairwisePasses = new Counter();
+    final Counter pairwisePairs = new Counter(); // interacting pairs found by the passes
+    final Counter regionMoves = new Counter(); // ships moved to another region's scheduler
+    final Counter hibernations = new Counter();
+    final Counter rehydrations = new Counter(); // dormant ships woken
+    final Counter startsDeferred = new Counter(); // wakes, region moves and respawns put off as the ship's shard couldn't be asked to start it
+    final Counter groupCommits = new Counter(); // batches
+    final Counter groupCommitUpdates = new Counter();
+    final Counter impulses = new Counter();
+    final Counter impulsesCoalesced = new Counter(); // impulses merged into ones already waiting to be taken
+    final Counter shotsDropped = new Counter(); // hits on ships whose impulse mailbox can't be reached
+    final Counter tickRetries = new Counter(); // failed deliveries of scheduled messages, which are retried
+    final Counter ticksDropped = new Counter(); // scheduled messages dropped as their ship has ended
+    volatile Histogram tickInterval = new Histogram(new UniformReservoir());
+    private final AtomicInteger shipsTicked = new AtomicInteger(); // ships that have ticked at least once
+    private final AtomicIntegerArray ticked; // 1 for each ship that has ticked at least once
+    private final AtomicIntegerArray spawns; // how many actors have been constructed for each ship
+    private long runStart;
+    volatile long preloadNanos; // 0 unless fast start
+    volatile long firstTickNanos; // since the run started; 0 until the first ship has ticked
+    volatile long allTickedNanos; // since the run started; 0 until all ships have ticked
     //
     private long cycleStart;
+    private boolean benchmarkPassed;
 
     public Spaceships(int node, Properties props) throws Exception {
         if (props.getProperty("parallelism") != null)
@@ -118,6 +187,7 @@ public class Spaceships {
         final int parallelism = ((FiberForkJoinScheduler) DefaultFiberScheduler.getInstance()).getForkJoinPool().getParallelism();// Integer.parseInt(props.getProperty("parallelism", "2"));
 
         this.glxNode = node;
+        this.props = props;
 
         final double b = Double.parseDouble(props.getProperty("world-length", "20000"));
         if (node < 0) {
@@ -149,11 +219,49 @@ public class Spaceships {
         }
 
         this.N = Integer.parseInt(props.getProperty("N", "10000"));
+        this.spawns = new AtomicIntegerArray(N);
+        this.ticked = new AtomicIntegerArray(N);
         this.speedVariance = Double.parseDouble(props.getProperty("speed-variance", "1"));
         this.range = Double.parseDouble(props.getProperty("radar-range", "10"));
+        this.neighborSkin = Double.parseDouble(props.getProperty("neighbor-skin", "0"));
+        this.deadReckoningError = Double.parseDouble(props.getProperty("dead-reckoning-error", "0"));
+        this.deadReckoningMaxStaleness = Long.parseLong(props.getProperty("dead-reckoning-max-staleness-millis", "500"));
+        this.deadReckoningDrift = deadReckoningError > 0 ? Spaceship.SPEED_LIMIT * deadReckoningMaxStaleness / TimeUnit.SECONDS.toMillis(1) : 0;
+        this.fatMargin = Spaceship.SPEED_LIMIT * Long.parseLong(props.getProperty("fat-aabb-millis", "0")) / TimeUnit.SECONDS.toMillis(1);
+        this.indexSlack = deadReckoningError + deadReckoningDrift + fatMargin;
         this.extrapolate = Boolean.parseBoolean(props.getProperty("extrapolate", "true"));
 
-        this.phaser = Boolean.parseBoolean(props.getProperty("phaser", "false")) ? new Phaser() : null;
+        this.soa = "soa".equalsIgnoreCase(props.getProperty("engine", "actors"));
+        this.fastStart = !soa && Boolean.parseBoolean(props.getProperty("fast-start", "false"));
+        this.supervisorFanOut = Integer.parseInt(props.getProperty("supervisor-fan-out", "1000"));
+        this.compactState = Boolean.parseBoolean(props.getProperty("compact-state", "false"));
+        if (props.getProperty("compact-state-epoch") != null)
+            System.setProperty(CompactShipRecord.EPOCH_PROPERTY, Long.toString(Long.parseLong(props.getProperty("compact-state-epoch").trim())));
+        else if (compactState && glxNode > 0)
+            throw new IllegalArgumentException("compact-state on a Galaxy node requires compact-state-epoch, shared by all nodes");
+        if (compactState)
+            CompactShipRecord.checkEpoch(now());
+        this.phaser = !soa && Boolean.parseBoolean(props.getProperty("phaser", "false")) ? new Phaser() : null;
+        this.phaserFanOut = Integer.parseInt(props.getProperty("phaser-fan-out", "64"));
+        this.phasers = phaser != null ? tieredPhasers(phaser, (N + phaserFanOut - 1) / phaserFanOut, phaserFanOut) : null;
+        this.scheduler = !soa ? new TickScheduler(this, Long.parseLong(props.getProperty("tick-resolution-millis", "1"))) : null;
+        this.blasts = !soa ? new BlastField(this, bounds, Spaceship.BLAST_RANGE) : null;
+        final long commitInterval = Long.parseLong(props.getProperty("group-commit-millis", "0"));
+        if (commitInterval > 0 && deadReckoning()) // with dead reckoning, ships already write their records only when they must
+            throw new IllegalArgumentException("group-commit-millis can't be combined with dead-reckoning-error");
+        this.committer = !soa && commitInterval > 0 ? new GroupCommitter(this, parallelism, commitInterval) : null;
+        this.pairwise = !soa && Boolean.parseBoolean(props.getProperty("pairwise-rejection", "false"))
+                ? new PairwiseRejection(this, N, bounds, range, Spaceship.MIN_PERIOD_MILLIS) : null;
+        final long hibernateIdle = Long.parseLong(props.getProperty("hibernate-idle-millis", "0"));
+        if (hibernateIdle > 0 && (soa || phaser != null)) // dormant ships don't tick in lock-step
+            throw new IllegalArgumentException("hibernate-idle-millis requires the actors engine, without phaser");
+        this.hibernator = hibernateIdle > 0 ? new Hibernator(this, hibernateIdle, supervisorFanOut) : null;
+        final String[] regionGrid = props.getProperty("scheduler-regions", "0").toLowerCase().split("x");
+        this.regions = !soa && regionGrid.length == 2
+                ? new RegionSchedulers(bounds, Integer.parseInt(regionGrid[0].trim()), Integer.parseInt(regionGrid[1].trim()), parallelism,
+                        Double.parseDouble(props.getProperty("scheduler-region-hysteresis", Double.toString(range))))
+                : null;
+        this.shards = hibernator != null || regions != null ? new Shards(this, N, supervisorFanOut) : null;
 
         if (props.getProperty("dir") != null) // collect performance metrics in csv files
             createMetricsFiles(props);
@@ -162,14 +270,26 @@ public class Spaceships {
         println("World bounds: " + bounds);
         println("N: " + N);
         println("Parallelism: " + parallelism);
-        println("Phaser: " + (phaser != null));
+        println("Engine: " + (soa ? "soa" : "actors"));
+        println("Phaser: " + (phaser != null ? "fan-out " + phaserFanOut + ", " + phasers.length + " leaves" : "NONE"));
+        println("Fast start: " + fastStart);
+        if (!soa)
+            println("Supervisor fan-out: " + supervisorFanOut);
         println("Extrapolate: " + extrapolate);
+        println("Pairwise rejection: " + (pairwise != null));
+        println("Neighbor list skin: " + (neighborSkin > 0 ? neighborSkin : "NONE"));
+        println("Fat bounds margin: " + (fatMargin > 0 ? fatMargin : "NONE"));
+        println("Dead reckoning: " + (deadReckoningError > 0 ? "error " + deadReckoningError + ", max staleness " + deadReckoningMaxStaleness + " ms" : "NONE"));
+        println("Group commit: " + (committer != null ? commitInterval + " ms" : "NONE"));
+        println("Compact state: " + compactState + (compactState ? " (until " + new Date(CompactShipRecord.lastTime()) + ")" : ""));
+        println("Hibernation: " + (hibernator != null ? "after " + hibernateIdle + " ms idle" : "NONE"));
+        println("Scheduler regions: " + (regions != null ? regions.size() : "NONE"));
+
+        this.random = props.getProperty("seed") != null ? new RandSpatial(Long.parseLong(props.getProperty("seed"))) : new RandSpatial();
+        println("Seed: " + random.getSeed());
         println();
 
-        this.random = new RandSpatial();
-
-        this.sb = initSpaceBase(props);
-        // sb.setDefaultTimeoutMillis(1000);
+        this.index = initSpatialIndex(props);
 
         this.toolkit = GLPort.Toolkit.valueOf(props.getProperty("ui-component", "NEWT").toUpperCase());
 
@@ -192,8 +312,67 @@ public class Spaceships {
         this.timeStream = new PrintStream(new FileOutputStream(timeFile), true);
     }
 
-    public co.paralleluniverse.spacebase.SpaceBase<Record<SpaceshipState>> getPlainSpaceBase() {
-        return co.paralleluniverse.spacebase.SpaceBaseBuilder.from(sb);
+    /**
+     * Builds a tree of phasers under the given root, where no phaser has more than {@code fanOut} parties, so that no
+     * single phaser is contended by all ships. Children register with their parents only when they gain parties.
+     *
+     * @return the tree's leaves
+     */
+    private static Phaser[] tieredPhasers(Phaser root, int leaves, int fanOut) {
+        final Phaser[] out = new Phaser[leaves];
+        tieredPhasers(root, out, 0, leaves, fanOut);
+        return out;
+    }
+
+    private static void tieredPhasers(Phaser parent, Phaser[] out, int from, int to, int fanOut) {
+        final int n = to - from;
+        if (n <= fanOut) {
+            for (int i = from; i < to; i++)
+                out[i] = new Phaser(parent);
+            return;
+        }
+        final int perChild = (n + fanOut - 1) / fanOut;
+        for (int i = from; i < to; i += perChild)
+            tieredPhasers(new Phaser(parent), out, i, Math.min(to, i + perChild), fanOut);
+    }
+
+    /**
+     * Counts an actor constructed for the given ship, whether it's started, restarted, respawned, woken or moved.
+     *
+     * @return how many were constructed for it before
+     */
+    int spawned(int id) {
+        return spawns.getAndIncrement(id);
+    }
+
+    /**
+     * The phaser the given ship registers with, or {@code null} if ships aren't run in lock-step
+     */
+    Phaser phaser(int id) {
+        return phasers != null ? phasers[id / phaserFanOut] : null;
+    }
+
+    /**
+     * reads properties file and creates the requested spatial index.
+     */
+    private SpatialIndex initSpatialIndex(Properties props) {
+        final String type = props.getProperty("spatial-index", "spacebase").toLowerCase();
+        println("Spatial index: " + type);
+        switch (type) {
+            case "spacebase":
+                return new SpaceBaseIndex(initSpaceBase(props));
+            case "grid":
+                if (glxNode > 0)
+                    throw new IllegalArgumentException("The grid spatial index cannot be distributed");
+                final double cellSize = Double.parseDouble(props.getProperty("grid-cell-size", Double.toString(Math.max(range, 50))));
+                final int stripes = Integer.parseInt(props.getProperty("grid-stripes", "1024"));
+                println("Grid cell size: " + cellSize);
+                println("Grid stripes: " + stripes);
+                println();
+                return new GridIndex(bounds, cellSize, stripes);
+            default:
+                throw new IllegalArgumentException("Unknown spatial index: " + type);
+        }
     }
 
     /**
@@ -243,6 +422,7 @@ public class Spaceships {
         }
 
         final SpaceBase<Record<SpaceshipState>> space = builder.build("base1");
+        // space.setDefaultTimeoutMillis(1000);
 
         if (glxNode > 0) {
             GalaxyStore store = (GalaxyStore) space.getStore();
@@ -272,15 +452,41 @@ public class Spaceships {
      * Main loop: loops over all spaceships and initiates each spaceship's actions. Simulates an IO thread receiving commands over the net.
      */
     private void run() throws Exception {
-        final Supervisor sup = new SupervisorActor(SupervisorActor.RestartStrategy.ONE_FOR_ONE) {
-            @Override
-            protected void init() throws InterruptedException, SuspendExecution {
-                for (int i = 0; i < N; i++)
-                    addChild(new Supervisor.ChildSpec("ship-" + i, Supervisor.ChildMode.PERMANENT, 5, 1, TimeUnit.SECONDS, 3, ActorSpec.of(Spaceship.class, Spaceships.this, i, phaser)));
-            }
-        }.spawn();
+        this.runStart = System.nanoTime();
+        if (soa)
+            new SoaEngine(this, N, props).start();
+        else {
+            scheduler.start();
+            if (committer != null)
+                committer.start();
+            if (pairwise != null)
+                pairwise.start();
+            if (hibernator != null)
+                hibernator.start();
+            final Spaceship[] ships = fastStart ? preload() : null;
+            final IntFunction<ActorBuilder<Spaceship.SpaceshipMessage, Void>> builders = ships != null
+                    ? i -> preloaded(ships, i)
+                    : i -> () -> new Spaceship(this, i, phaser(i));
+            final Supervisor sup = new SupervisorActor(SupervisorActor.RestartStrategy.ONE_FOR_ONE) {
+                @Override
+                protected void init() throws InterruptedException, SuspendExecution {
+                    for (int from = 0, shard = 0; from < N; from += supervisorFanOut, shard++) {
+                        final int from1 = from;
+                        final int to = Math.min(N, from + supervisorFanOut);
+                        final ActorBuilder<Object, Void> shardBuilder = () -> new ShardSupervisor(Spaceships.this, from1, to, builders);
+                        addChild(new Supervisor.ChildSpec("ships-" + shard, Supervisor.ChildMode.PERMANENT, 5, 1, TimeUnit.SECONDS, 3, shardBuilder));
+                    }
+                }
+            }.spawn();
+        }
 
-        Thread.sleep(5000); // wait for things to optimize a bit.
+        if (toolkit == GLPort.Toolkit.NONE) { // headless
+            this.benchmarkPassed = new HeadlessBenchmark(this, N, props).run();
+            return;
+        }
+
+        if (!fastStart)
+            Thread.sleep(5000); // wait for things to optimize a bit.
         port = new GLPort(toolkit, N + 20, Spaceships.this, bounds, glxNode);
 
         if (timeStream != null)
@@ -322,6 +528,64 @@ public class Spaceships {
         }
     }
 
+    /**
+     * Creates all ships in parallel, and adds them to the index in one go, before any of them is started.
+     */
+    private Spaceship[] preload() throws InterruptedException {
+        final long start = System.nanoTime();
+        final Spaceship[] ships = new Spaceship[N];
+        @SuppressWarnings("unchecked")
+        final Record<SpaceshipState>[] states = new Record[N];
+        final AABB[] aabbs = new AABB[N];
+        IntStream.range(0, N).parallel().forEach(i -> {
+            ships[i] = new Spaceship(this, i, phaser(i));
+            states[i] = ships[i].initialState();
+            aabbs[i] = ships[i].initialBounds();
+        });
+        index.insertAll(ships, states, aabbs);
+        index.joinAllPendingOperations();
+        this.preloadNanos = System.nanoTime() - start;
+        println("Preloaded " + N + " ships in " + millis(start) + " millis");
+        return ships;
+    }
+
+    /**
+     * Starts a preloaded ship the first time, and a new one if it's restarted.
+     */
+    private ActorBuilder<Spaceship.SpaceshipMessage, Void> preloaded(Spaceship[] ships, int i) {
+        return () -> {
+            final Spaceship ship = ships[i]; // only accessed by the supervisor
+            if (ship == null)
+                return new Spaceship(this, i, phaser(i));
+            ships[i] = null;
+            return ship;
+        };
+    }
+
+    /**
+     * Called by each ship actor on its first tick. Only the first actor of each ship to tick is counted, so ships
+     * that are restarted or woken from hibernation aren't counted twice.
+     */
+    void firstTick(int id) {
+        if (!ticked.compareAndSet(id, 0, 1))
+            return;
+        final long t = System.nanoTime() - runStart;
+        final int n = shipsTicked.incrementAndGet();
+        if (n == 1)
+            this.firstTickNanos = t;
+        if (n == N) {
+            this.allTickedNanos = t;
+            System.out.println("All " + N + " ships ticked after " + t / 1000000 + " millis (first after " + firstTickNanos / 1000000 + ")");
+        }
+    }
+
+    /**
+     * Whether ships publish their moves only when others' extrapolation of their trajectory is too far off
+     */
+    boolean deadReckoning() {
+        return deadReckoningError > 0;
+    }
+
     public long now() {
         return System.currentTimeMillis();
     }
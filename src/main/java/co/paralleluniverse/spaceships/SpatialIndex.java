@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.data.record.Record;
+import co.paralleluniverse.db.quasar.MigrationListener;
+import co.paralleluniverse.fibers.SuspendExecution;
+import co.paralleluniverse.spacebase.AABB;
+import co.paralleluniverse.spacebase.SpatialQuery;
+import co.paralleluniverse.spacebase.SpatialToken;
+import co.paralleluniverse.spacebase.SpatialVisitor;
+import java.util.Collection;
+
+/**
+ * The spatial index holding the spaceships' public state. Selected with the {@code spatial-index} property.
+ *
+ * Spaceships access the index through a {@link Session}, whose operations return a {@link Result} that works like a
+ * SpaceBase transaction: the elements it returns (and the element it updates) must only be accessed before it's
+ * closed. Threads that don't take part in the simulation (the renderer, or the SoA engine publishing its state)
+ * use the non-transactional methods.
+ */
+public interface SpatialIndex {
+    /**
+     * Creates a session for the exclusive use of a single strand.
+     */
+    Session newSession();
+
+    /**
+     * Adds an element outside of a transaction.
+     */
+    SpatialToken insert(Record<SpaceshipState> s, AABB bounds);
+
+    /**
+     * Adds many elements at once, outside of a transaction, and sets their {@code $token}s. Knowing all elements up
+     * front, an index may order or size its insertions, but it isn't necessarily faster than inserting them one by one.
+     *
+     * @param owners the ships that will {@link Session#adopt(Record) adopt} the records, or {@code null} if the
+     *               records will be moved without transactions, as if added with {@link #insert(Record, AABB) insert}.
+     */
+    void insertAll(Object[] owners, Record<SpaceshipState>[] ss, AABB[] bounds);
+
+    /**
+     * Moves an element outside of a transaction. The element's record is not protected, so a concurrent reader
+     * might see it partially modified.
+     */
+    void update(SpatialToken token, AABB bounds);
+
+    /**
+     * Removes an element outside of a transaction.
+     */
+    void delete(SpatialToken token);
+
+    /**
+     * Visits all elements matching the query. Elements are visited one at a time, and not as a consistent snapshot.
+     */
+    void query(SpatialQuery<? super Record<SpaceshipState>> query, SpatialVisitor<Record<SpaceshipState>> visitor);
+
+    /**
+     * Waits for all non-transactional operations issued by the current thread to complete.
+     */
+    void joinAllPendingOperations() throws InterruptedException;
+
+    interface Session {
+        /**
+         * Adds a ship and sets its {@code $token}.
+         *
+         * @return the record the owner must use as the ship's state from now on.
+         */
+        Record<SpaceshipState> insert(Object owner, Record<SpaceshipState> state, AABB bounds) throws SuspendExecution;
+
+        /**
+         * Takes ownership of a ship added on the owner's behalf by {@link SpatialIndex#insertAll(Object[], Record[], AABB[]) insertAll}.
+         *
+         * @return the record the owner must use as the ship's state from now on.
+         */
+        Record<SpaceshipState> adopt(Record<SpaceshipState> state);
+
+        void delete(SpatialToken token) throws SuspendExecution;
+
+        /**
+         * Calls the listener when the element migrates to another node (when the index is distributed).
+         */
+        void setMigrationWatch(SpatialToken token, MigrationListener listener);
+
+        /**
+         * Finds all elements matching the query.
+         */
+        Result query(SpatialQuery<? super Record<SpaceshipState>> query) throws SuspendExecution, InterruptedException;
+
+        /**
+         * Finds all elements matching the query, and locks the given element (which must be among them) for update.
+         */
+        Result queryForUpdate(SpatialQuery<? super Record<SpaceshipState>> query, Record<SpaceshipState> me, AABB myBounds) throws SuspendExecution, InterruptedException;
+
+        /**
+         * Finds the element nearest to the query's point that the query accepts, without visiting elements that are
+         * farther than it if the index can avoid it. The result's {@link Result#element() element} is {@code null}
+         * if there's none.
+         */
+        Result nearest(NearestQuery query) throws SuspendExecution, InterruptedException;
+
+        /**
+         * Reads a single element. The result's {@link Result#element() element} is {@code null} if it's gone.
+         */
+        Result read(SpatialToken token) throws SuspendExecution, InterruptedException;
+
+        /**
+         * Locks a single element for update. If it has already been deleted (say, a ship that blew up while the
+         * hibernator or the group committer was about to move it), nothing is locked.
+         */
+        Result update(SpatialToken token) throws SuspendExecution, InterruptedException;
+    }
+
+    /**
+     * The result of a transactional operation. A session may only have one open result at a time, and the strand
+     * holding it must not block until it's closed.
+     */
+    interface Result extends AutoCloseable {
+        /**
+         * The elements found by a query. Must not be modified.
+         */
+        Collection<Record<SpaceshipState>> elements();
+
+        /**
+         * The element read (or found by {@link Session#nearest(NearestQuery) nearest}), or {@code null} if it's gone.
+         */
+        Record<SpaceshipState> element();
+
+        /**
+         * Sets the new bounds of the element locked for update. Does nothing if the element had already been deleted.
+         */
+        void update(AABB bounds);
+
+        @Override
+        void close() throws SuspendExecution;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2013 Parallel Universe Software Co.
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of
+ * this software and associated documentation files (the "Software"), to deal in
+ * the Software without restriction, including without limitation the rights to
+ * use, copy, modify, merge, publish, distribute, sublicense, and/or sell copies of
+ * the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS
+ * FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR
+ * COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER
+ * IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN
+ * CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+package co.paralleluniverse.spaceships;
+
+import co.paralleluniverse.actors.ActorRef;
+import co.paralleluniverse.actors.LocalActor;
+import co.paralleluniverse.fibers.SuspendExecution;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Delivers messages to actors at given times, so that spaceships don't each need to arm a receive timeout.
+ * A single thread drives a hierarchical timing wheel, and all timers expiring in the same wheel slot are delivered
+ * together.
+ *
+ * Scheduling a timer doesn't allocate: timers are pushed onto an intrusive lock-free stack, which the scheduler
+ * thread drains into the wheel on every tick.
+ */
+class TickScheduler implements Runnable {
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4; // 2^24 ticks, or over 4 hours at 1 ms resolution
+    private static final long MAX_DELAY = (1L << (WHEEL_BITS * LEVELS)) - 1;
+    private static final int MAX_RETRY_DELAY_BITS = 10; // failed deliveries are retried after up to 2^10 ticks
+    //
+    private final Spaceships global;
+    private final long resolutionMillis;
+    private final long startMillis;
+    private final Timer<?>[][] wheels = new Timer<?>[LEVELS][WHEEL_SIZE]; // only accessed by the scheduler thread
+    private final AtomicReference<Timer<?>> pending = new AtomicReference<>();
+    private final AtomicInteger phases = new AtomicInteger();
+    private long current; // ticks since start; only accessed by the scheduler thread
+
+    TickScheduler(Spaceships global, long resolutionMillis) {
+        this.global = global;
+        this.resolutionMillis = resolutionMillis;
+        this.startMillis = global.now();
+    }
+
+    void start() {
+        final Thread thread = new Thread(this, "tick-scheduler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns an offset into a period of the given length. Successive calls spread their offsets evenly over the
+     * period, so that ships started together don't all tick together.
+     */
+    long nextPhase(long periodMillis) {
+        return (phases.getAndIncrement() * resolutionMillis) % periodMillis;
+    }
+
+    /**
+     * Sends the timer's message to its target at the given time (or as soon as possible after it).
+     * A timer must not be scheduled again before its message has been sent.
+     */
+    void schedule(Timer<?> timer, long timeMillis) {
+        timer.deadline = timeMillis;
+        Timer<?> head;
+        do {
+            head = pending.get();
+            timer.next = head;
+        } while (!pending.compareAndSet(head, timer));
+    }
+
+    @Override
+    public void run() {
+        for (;;) {
+            try {
+                Thread.sleep(resolutionMillis);
+                final long now = (global.now() - startMillis) / resolutionMillis;
+                drainPending();
+                while (current < now) {
+                    current++;
+                    cascade();
+                    final int slot = (int) (current & WHEEL_MASK);
+                    Timer<?> t = wheels[0][slot];
+                    wheels[0][slot] = null;
+                    fire(t);
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (Throwable t) { // all ships' ticks depend on this thread, so it must keep going
+                System.err.println("Exception in tick scheduler");
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private void drainPending() {
+        Timer<?> t = pending.getAndSet(null);
+        while (t != null) {
+            final Timer<?> next = t.next;
+            insert(t);
+            t = next;
+        }
+    }
+
+    /**
+     * Moves the timers in the higher-level slots that come due with the current tick down the hierarchy.
+     */
+    private void cascade() {
+        for (int level = 1; level < LEVELS; level++) {
+            if ((current & ((1L << (WHEEL_BITS * level)) - 1)) != 0)
+                break;
+            final int slot = (int) ((current >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+            Timer<?> t = wheels[level][slot];
+            wheels[level][slot] = null;
+            while (t != null) {
+                final Timer<?> next = t.next;
+                insert(t);
+                t = next;
+            }
+        }
+    }
+
+    private void insert(Timer<?> t) {
+        final long ticks = (t.deadline - startMillis + resolutionMillis - 1) / resolutionMillis;
+        final long delay = Math.min(ticks - current, MAX_DELAY);
+        if (delay <= 0) {
+            t.next = null;
+            fire(t);
+            return;
+        }
+        final long expires = current + delay;
+        int level = 0;
+        while (delay >= (1L << (WHEEL_BITS * (level + 1))))
+            level++;
+        final int slot = (int) ((expires >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        t.next = wheels[level][slot];
+        wheels[level][slot] = t;
+    }
+
+    private void fire(Timer<?> t) {
+        while (t != null) {
+            final Timer<?> next = t.next;
+            t.next = null;
+            if (!t.send()) {
+                // a ship only schedules its next tick when it gets this one, so a tick mustn't be lost while the ship
+                // lives: try again later, backing off, for as long as it takes
+                if (LocalActor.isDone(t.target)) {
+                    global.ticksDropped.inc();
+                    System.err.println("Dropped a scheduled message to " + t.target + ", which has ended");
+                } else {
+                    global.tickRetries.inc();
+                    t.failures++;
+                    t.deadline = startMillis + (current + (1L << Math.min(t.failures - 1, MAX_RETRY_DELAY_BITS))) * resolutionMillis;
+                    insert(t);
+                }
+            } // otherwise, the timer may be rescheduled as soon as send returns
+            t = next;
+        }
+    }
+
+    /**
+     * A message to be sent to an actor at a scheduled time. Can be rescheduled once its message has been sent.
+     */
+    static final class Timer<Message> {
+        private final ActorRef<Message> target;
+        private final Message message;
+        private long deadline;
+        private Timer<?> next;
+        private int failures; // consecutive failed deliveries
+
+        Timer(ActorRef<Message> target, Message message) {
+            this.target = target;
+            this.message = message;
+        }
+
+        /**
+         * @return {@code false} if the message couldn't be delivered (say, if the target's mailbox is full)
+         */
+        private boolean send() {
+            try {
+                target.send(message);
+                failures = 0;
+                return true;
+            } catch (SuspendExecution e) {
+                throw new AssertionError(e);
+            } catch (RuntimeException e) {
+                if (failures == 0)
+                    System.err.println("Could not deliver a scheduled message to " + target + " (will retry): " + e);
+                return false;
+            }
+        }
+    }
+}
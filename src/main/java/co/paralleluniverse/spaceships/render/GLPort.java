@@ -26,7 +26,6 @@ import co.paralleluniverse.spacebase.AABB;
 import static co.paralleluniverse.spacebase.AABB.X;
 import static co.paralleluniverse.spacebase.AABB.Y;
 import co.paralleluniverse.spacebase.MutableAABB;
-import co.paralleluniverse.spacebase.SpaceBase;
 import co.paralleluniverse.spacebase.SpatialQueries;
 import co.paralleluniverse.spacebase.SpatialQuery;
 import co.paralleluniverse.spacebase.SpatialToken;
@@ -35,6 +34,7 @@ import co.paralleluniverse.spaceships.Spaceship;
 import co.paralleluniverse.spaceships.SpaceshipState;
 import static co.paralleluniverse.spaceships.SpaceshipState.*;
 import co.paralleluniverse.spaceships.Spaceships;
+import co.paralleluniverse.spaceships.SpatialIndex;
 import com.jogamp.newt.awt.NewtCanvasAWT;
 import com.jogamp.newt.opengl.GLWindow;
 import com.jogamp.opengl.util.FPSAnimator;
@@ -73,7 +73,8 @@ import javax.media.opengl.fixedfunc.GLMatrixFunc;
  */
 public class GLPort implements GLEventListener {
     public enum Toolkit {
-        NEWT, NEWT_CANVAS, AWT
+        NEWT, NEWT_CANVAS, AWT,
+        NONE // headless: no rendering at all
     };
     private static final int WINDOW_WIDTH = 1200;
     private static final int WINDOW_HEIGHT = 700;
@@ -102,7 +103,7 @@ public class GLPort implements GLEventListener {
     private static final float KEY_PRESS_TRANSLATE = 10.0f;
     private final Object window;
     private final int maxItems;
-    private final SpaceBase<Record<SpaceshipState>> sb;
+    private final SpatialIndex index;
     private final AABB bounds;
     private final int glxNode;
     private MutableAABB port = MutableAABB.create(2);
@@ -126,7 +127,7 @@ public class GLPort implements GLEventListener {
         TOOLKIT = toolkit;
         this.maxItems = maxItems;
         this.global = global;
-        this.sb = global.getPlainSpaceBase();
+        this.index = global.index;
         this.bounds = bounds;
         this.glxNode = glxNode;
 
@@ -391,7 +392,7 @@ public class GLPort implements GLEventListener {
         indexGen.set(0);
 
         final long start = System.nanoTime();
-        sb.query(query, new SpatialVisitor<Record<SpaceshipState>>() {
+        index.query(query, new SpatialVisitor<Record<SpaceshipState>>() {
             @Override
             public void visit(Record<SpaceshipState> s, SpatialToken st) {
                 if (s.get($lastMoved) == 0)